@@ -0,0 +1,127 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.PathRef;
+import org.nuxeo.ecm.core.api.repository.RepositoryManager;
+import org.nuxeo.ecm.platform.filemanager.api.FileImporterContext;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks of the importers, run in the Nuxeo runtime started by {@link TestImporterBenchmarks} (JMH runs in the
+ * same JVM). The configuration of the scenario is deployed before JMH is started. Each invocation runs in its own
+ * transaction, which is rolled back so the repository does not grow.
+ *
+ * @since 2023.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ImporterBenchmark {
+
+    public static final String BENCH_ROOT = "/bench";
+
+    // Deployed by TestImporterBenchmarks, here so it is in the results
+    @Param("no-config")
+    public String scenario;
+
+    // Size of the dc:description set by the chain with properties, read from the name of the parent
+    @Param("0")
+    public int payloadSize;
+
+    protected CoreSession session;
+
+    protected FileImporterAutomationService service;
+
+    protected FileManagerAutomationPlugin plugin;
+
+    protected Blob blob;
+
+    protected String parentPath;
+
+    protected long folderCount;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        service = Framework.getService(FileImporterAutomationService.class);
+        plugin = new FileManagerAutomationPlugin();
+        blob = Blobs.createBlob(new byte[4096], "application/pdf", null, "bench.pdf");
+
+        String repositoryName = Framework.getService(RepositoryManager.class).getDefaultRepositoryName();
+        session = CoreInstance.getCoreSessionSystem(repositoryName);
+        parentPath = BENCH_ROOT + "/payload-" + payloadSize;
+        TransactionHelper.runInTransaction(() -> {
+            if (!session.exists(new PathRef(BENCH_ROOT))) {
+                session.createDocument(session.createDocumentModel("/", "bench", "Folder"));
+            }
+            if (!session.exists(new PathRef(parentPath))) {
+                session.createDocument(session.createDocumentModel(BENCH_ROOT, "payload-" + payloadSize, "Folder"));
+            }
+        });
+    }
+
+    @Setup(Level.Invocation)
+    public void startTransaction() {
+        TransactionHelper.startTransaction();
+    }
+
+    @TearDown(Level.Invocation)
+    public void rollbackTransaction() {
+        TransactionHelper.setTransactionRollbackOnly();
+        TransactionHelper.commitOrRollbackTransaction();
+    }
+
+    protected FileImporterContext newContext() {
+        return FileImporterContext.builder(session, blob, parentPath).overwrite(true).build();
+    }
+
+    @Benchmark
+    public DocumentModel createOrUpdate() {
+        return service.createOrUpdate(newContext());
+    }
+
+    @Benchmark
+    public DocumentModel fileManagerPlugin() {
+        return plugin.createOrUpdate(newContext());
+    }
+
+    @Benchmark
+    public DocumentModel createFolderish() {
+        return service.createFolderish(session, "folder-" + folderCount++, parentPath, false, null);
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.automation.test.AutomationFeature;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.HotDeployer;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Starts an in-memory Nuxeo, then runs the JMH benchmarks of {@link ImporterBenchmark} for each scenario. Only run
+ * with the bench profile: {@code mvn test -Pbench}.
+ * <br>
+ * Throughput and allocation ({@code gc} profiler) results are written to {@code target/jmh-<scenario>.json}, to be
+ * compared between releases. Iterations can be changed with the {@code bench.warmupIterations},
+ * {@code bench.iterations} and {@code bench.iterationSeconds} system properties, the benchmarks run with
+ * {@code bench.include} (a regexp, default is all).
+ *
+ * @since 2023.1
+ */
+@RunWith(FeaturesRunner.class)
+@Features(AutomationFeature.class)
+@Deploy("org.nuxeo.ecm.platform.types")
+@Deploy("org.nuxeo.ecm.platform.filemanager")
+@Deploy("org.nuxeo.ecm.automation.scripting")
+@Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core")
+public class TestImporterBenchmarks {
+
+    public static final String BUNDLE = "nuxeo.filemanager.automation.nuxeo-filemanager-automation-core";
+
+    @Inject
+    protected HotDeployer hotDeployer;
+
+    @Test
+    public void runBenchmarks() throws Exception {
+        runScenario("no-config", null, "0");
+        runScenario("null-chain", "bench-null-chain.xml", "0");
+        runScenario("js-chain", "bench-js-chain.xml", "0");
+        runScenario("js-properties", "bench-js-properties.xml", "10", "1000", "100000");
+    }
+
+    protected void runScenario(String scenario, String contrib, String... payloadSizes) throws Exception {
+
+        if (contrib != null) {
+            hotDeployer.deploy(BUNDLE + ":" + contrib);
+        }
+        try {
+            String include = System.getProperty("bench.include", ".*");
+            ChainedOptionsBuilder options = new OptionsBuilder().include(
+                    ImporterBenchmark.class.getName() + "." + include);
+            options.param("scenario", scenario).param("payloadSize", payloadSizes);
+            // Same JVM: the Nuxeo runtime is started here
+            options.forks(0).threads(1);
+            options.warmupIterations(Integer.getInteger("bench.warmupIterations", 3)).warmupTime(iterationTime());
+            options.measurementIterations(Integer.getInteger("bench.iterations", 5)).measurementTime(iterationTime());
+            options.timeUnit(TimeUnit.SECONDS).addProfiler(GCProfiler.class);
+            options.resultFormat(ResultFormatType.JSON).result("target/jmh-" + scenario + ".json");
+            new Runner(options.build()).run();
+        } finally {
+            if (contrib != null) {
+                hotDeployer.undeploy(BUNDLE + ":" + contrib);
+            }
+        }
+    }
+
+    protected static TimeValue iterationTime() {
+        return TimeValue.seconds(Integer.getInteger("bench.iterationSeconds", 2));
+    }
+
+}
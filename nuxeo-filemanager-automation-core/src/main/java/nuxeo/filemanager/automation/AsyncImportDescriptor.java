@@ -0,0 +1,66 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * Global configuration of the {@link AsyncImporter}, contributed to the {@code configuration} extension point:
+ *
+ * <pre>
+ * &lt;asyncImport maxThreads="8" maxPending="1000" virtualThreads="true" /&gt;
+ * </pre>
+ *
+ * The last contribution wins.
+ *
+ * @since 2023.1
+ */
+@XObject("asyncImport")
+public class AsyncImportDescriptor {
+
+    public static final int DEFAULT_MAX_THREADS = 8;
+
+    public static final int DEFAULT_MAX_PENDING = 1000;
+
+    // Max. number of imports running at the same time, each one uses a repository connection
+    @XNode("@maxThreads")
+    protected int maxThreads = DEFAULT_MAX_THREADS;
+
+    // Max. number of imports queued or running. When reached, new imports are rejected at once
+    @XNode("@maxPending")
+    protected int maxPending = DEFAULT_MAX_PENDING;
+
+    // Used only if the JVM supports them
+    @XNode("@virtualThreads")
+    protected boolean virtualThreads = true;
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+}
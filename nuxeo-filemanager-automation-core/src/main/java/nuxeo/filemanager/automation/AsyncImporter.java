@@ -0,0 +1,217 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentRef;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Runs the asynchronous imports of the service, configured with the {@code <asyncImport>} element of the XML
+ * configuration. Each import runs in its own session (same repository and user as the caller) and its own transaction,
+ * and its future completes once the transaction is committed.
+ * <br>
+ * At most {@code maxThreads} imports run at the same time, on virtual threads when the JVM supports them (Java 21+),
+ * platform threads otherwise. When {@code maxPending} imports are queued or running, new ones fail at once (status
+ * 503), so a caller producing faster than the repository can absorb slows down instead of filling the memory.
+ *
+ * @since 2023.1
+ */
+public class AsyncImporter {
+
+    private static final Logger log = LogManager.getLogger(AsyncImporter.class);
+
+    public static final String THREAD_NAME_PREFIX = "filemanager-automation-async-";
+
+    protected static final ThreadFactory VIRTUAL_THREAD_FACTORY = newVirtualThreadFactory();
+
+    protected final AtomicLong submitted = new AtomicLong();
+
+    protected final AtomicLong rejected = new AtomicLong();
+
+    protected final AtomicLong failed = new AtomicLong();
+
+    protected volatile Pool pool = new Pool(new AsyncImportDescriptor());
+
+    /**
+     * An executor and its limits, replaced as a whole when the configuration changes.
+     */
+    protected static class Pool {
+
+        protected final ThreadPoolExecutor executor;
+
+        protected final Semaphore pending;
+
+        protected final int maxPending;
+
+        protected final boolean virtualThreads;
+
+        protected Pool(AsyncImportDescriptor descriptor) {
+            int maxThreads = Math.max(descriptor.getMaxThreads(), 1);
+            maxPending = Math.max(descriptor.getMaxPending(), 1);
+            virtualThreads = descriptor.isVirtualThreads() && VIRTUAL_THREAD_FACTORY != null;
+            // The semaphore bounds the queue, no thread is started until the first import
+            executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), virtualThreads ? VIRTUAL_THREAD_FACTORY : newPlatformThreadFactory());
+            executor.allowCoreThreadTimeOut(true);
+            pending = new Semaphore(maxPending);
+        }
+
+    }
+
+    /**
+     * Returns the factory of virtual threads, or null if the JVM does not support them. Looked up by reflection, so the
+     * plugin still runs on Java 17.
+     */
+    protected static ThreadFactory newVirtualThreadFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class)
+                                  .invoke(builder, THREAD_NAME_PREFIX, 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    protected static ThreadFactory newPlatformThreadFactory() {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, THREAD_NAME_PREFIX + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Applies a new configuration. The imports already submitted complete on the previous executor.
+     */
+    public void configure(AsyncImportDescriptor descriptor) {
+        Pool previous = pool;
+        pool = new Pool(descriptor);
+        previous.executor.shutdown();
+        log.debug("Asynchronous imports: {} threads ({}), {} pending max.", pool.executor.getMaximumPoolSize(),
+                pool.virtualThreads ? "virtual" : "platform", pool.maxPending);
+    }
+
+    /**
+     * Stops accepting imports. The imports already submitted are completed.
+     */
+    public void shutdown() {
+        pool.executor.shutdown();
+    }
+
+    /**
+     * Runs {@code task} asynchronously, in a new session for {@code principal} and a new transaction. The future
+     * returns the reference of the document returned by the task (null if the task returns null) once the transaction
+     * is committed, or fails with the exception of the task or of the commit.
+     */
+    public CompletableFuture<DocumentRef> submit(String repositoryName, NuxeoPrincipal principal,
+            Function<CoreSession, DocumentModel> task) {
+
+        Pool current = pool;
+        if (!current.pending.tryAcquire()) {
+            rejected.incrementAndGet();
+            return CompletableFuture.failedFuture(
+                    new NuxeoException("Too many asynchronous imports pending (" + current.maxPending + ")", 503));
+        }
+
+        submitted.incrementAndGet();
+        CompletableFuture<DocumentRef> future = new CompletableFuture<>();
+        try {
+            current.executor.execute(() -> {
+                try {
+                    future.complete(run(repositoryName, principal, task));
+                } catch (Throwable e) { // the future must complete whatever happens
+                    failed.incrementAndGet();
+                    future.completeExceptionally(e);
+                } finally {
+                    current.pending.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Reconfigured or shut down in the meantime
+            current.pending.release();
+            rejected.incrementAndGet();
+            future.completeExceptionally(new NuxeoException("Asynchronous imports are stopped", e, 503));
+        }
+        return future;
+    }
+
+    protected DocumentRef run(String repositoryName, NuxeoPrincipal principal,
+            Function<CoreSession, DocumentModel> task) {
+        CoreSession session = CoreInstance.getCoreSession(repositoryName, principal);
+        TransactionHelper.startTransaction();
+        try {
+            DocumentModel doc = task.apply(session);
+            return doc == null ? null : doc.getRef();
+        } catch (RuntimeException e) {
+            TransactionHelper.setTransactionRollbackOnly();
+            throw e;
+        } finally {
+            TransactionHelper.commitOrRollbackTransaction();
+        }
+    }
+
+    /**
+     * Returns the number of imports queued or running.
+     */
+    public int getPending() {
+        Pool current = pool;
+        return current.maxPending - current.pending.availablePermits();
+    }
+
+    public boolean isVirtualThreads() {
+        return pool.virtualThreads;
+    }
+
+    public Map<String, Object> toMap() {
+        Pool current = pool;
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("virtualThreads", current.virtualThreads);
+        map.put("maxThreads", current.executor.getMaximumPoolSize());
+        map.put("maxPending", current.maxPending);
+        map.put("pending", getPending());
+        map.put("submitted", submitted.get());
+        map.put("rejected", rejected.get());
+        map.put("failed", failed.get());
+        return map;
+    }
+
+}
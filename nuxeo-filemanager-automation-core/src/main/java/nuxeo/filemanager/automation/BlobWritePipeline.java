@@ -0,0 +1,255 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.core.blob.BlobInfo;
+import org.nuxeo.ecm.core.blob.BlobManager;
+import org.nuxeo.ecm.core.blob.BlobProvider;
+import org.nuxeo.ecm.core.blob.ManagedBlob;
+import org.nuxeo.ecm.core.blob.SimpleManagedBlob;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Stores the blobs in the binary store of the repository while the FileImporter callback decides, for the rules with
+ * {@code <pipelinedBlobWrite>}. The resulting {@link ManagedBlob} is then set on the document, so
+ * {@code CoreSession#createDocument} does not store the binary again. The number of threads and of writes waiting for
+ * one are configured with {@code <blobWritePipeline>}, see {@link BlobWritePipelineDescriptor}.
+ * <br>
+ * Only the blobs backed by a file are written ahead: the writer reads the file with its own stream, while the callback
+ * reads the original blob.
+ * <br>
+ * The blob is written outside of the import transaction: if the import is declined or fails, the binary is left to the
+ * garbage collection of the binary store. If the write fails, cannot be started (too many writes waiting) or does not
+ * start in time, the import goes on with the original blob. A write already started is never done twice: the import
+ * waits for it.
+ *
+ * @since 2023.1
+ */
+public class BlobWritePipeline {
+
+    private static final Logger log = LogManager.getLogger(BlobWritePipeline.class);
+
+    // The default digest of the blob providers, the one of their default key strategy
+    public static final String DIGEST_ALGORITHM = "MD5";
+
+    protected volatile BlobWritePipelineDescriptor descriptor = new BlobWritePipelineDescriptor();
+
+    // Null until started
+    protected volatile ThreadPoolExecutor executor;
+
+    protected final AtomicLong written = new AtomicLong();
+
+    protected final AtomicLong failed = new AtomicLong();
+
+    /**
+     * A write of a blob. It is either started by a thread of the pipeline or cancelled, whichever comes first.
+     */
+    protected static class Write extends CompletableFuture<Blob> {
+
+        protected final AtomicBoolean claimed = new AtomicBoolean();
+
+        /**
+         * Cancels the write if it is not started yet. A write already started completes anyway.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return claimed.compareAndSet(false, true) && super.cancel(mayInterruptIfRunning);
+        }
+
+    }
+
+    /**
+     * Creates the executor, replacing the one shut down by {@link #shutdown()}.
+     */
+    public synchronized void start() {
+        if (executor != null && !executor.isShutdown()) {
+            return;
+        }
+        executor = newExecutor(descriptor);
+    }
+
+    /**
+     * Applies a new configuration. If the pipeline is started, its executor is replaced, the writes already submitted
+     * complete on the previous one.
+     */
+    public synchronized void configure(BlobWritePipelineDescriptor descriptor) {
+        this.descriptor = descriptor;
+        ThreadPoolExecutor previous = executor;
+        if (previous != null && !previous.isShutdown()) {
+            executor = newExecutor(descriptor);
+            previous.shutdown();
+        }
+    }
+
+    protected static ThreadPoolExecutor newExecutor(BlobWritePipelineDescriptor descriptor) {
+        int threads = Math.max(descriptor.getThreads(), 1);
+        int queueSize = Math.max(descriptor.getQueueSize(), 1);
+        // No thread is started until the first write
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(queueSize), newThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+        log.debug("Blob write pipeline: {} threads, {} writes waiting max.", threads, queueSize);
+        return executor;
+    }
+
+    protected static ThreadFactory newThreadFactory() {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, "filemanager-automation-blob-write-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * True if the blob is worth writing ahead: backed by a file, not already stored, and at least {@code minSize}
+     * bytes.
+     */
+    public static boolean accepts(Blob blob, long minSize) {
+        return !(blob instanceof ManagedBlob) && blob.getFile() != null && blob.getLength() >= minSize;
+    }
+
+    /**
+     * Starts writing the blob to a blob provider.
+     * <br>
+     * The blob dispatcher chooses the provider of a blob from the stored document, which does not exist yet. So the
+     * provider is the one configured for the rule, or the default provider of the repository (the one of the default
+     * dispatcher). If the dispatcher chooses another one for the document, the repository copies the blob to it.
+     *
+     * @param providerId the blob provider, null for the default provider of the repository
+     * @return null if the write cannot be started (pipeline stopped, queue full): the blob is stored with the document
+     */
+    public CompletableFuture<Blob> write(String repositoryName, String providerId, Blob blob) {
+        String id = providerId == null ? repositoryName : providerId;
+        ThreadPoolExecutor current = executor;
+        if (current == null) {
+            return null;
+        }
+        // The writer reads the file with its own stream
+        FileBlob source = new FileBlob(blob.getFile(), blob.getMimeType(), blob.getEncoding());
+        source.setFilename(blob.getFilename());
+        source.setDigest(blob.getDigest());
+        Write write = new Write();
+        try {
+            current.execute(() -> {
+                if (!write.claimed.compareAndSet(false, true)) {
+                    // Cancelled while waiting for a thread
+                    return;
+                }
+                try {
+                    write.complete(store(id, source));
+                } catch (RuntimeException e) {
+                    write.completeExceptionally(e);
+                }
+            });
+            return write;
+        } catch (RejectedExecutionException e) {
+            // Queue full, or shut down in the meantime
+            return null;
+        }
+    }
+
+    protected Blob store(String providerId, Blob blob) {
+        BlobProvider provider = Framework.getService(BlobManager.class).getBlobProvider(providerId);
+        if (provider == null) {
+            throw new NuxeoException("No blob provider " + providerId);
+        }
+        try {
+            BlobInfo info = new BlobInfo();
+            info.key = provider.writeBlob(blob);
+            // Computed from the file if the blob has none, the repository keeps the digest of a managed blob as is
+            info.digest = FileImporterAutomationServiceImpl.digest(blob, DIGEST_ALGORITHM);
+            info.mimeType = blob.getMimeType();
+            info.encoding = blob.getEncoding();
+            info.filename = blob.getFilename();
+            info.length = blob.getLength();
+            written.incrementAndGet();
+            return new SimpleManagedBlob(providerId, info);
+        } catch (IOException e) {
+            throw new NuxeoException("Failed to store " + blob.getFilename(), e);
+        }
+    }
+
+    /**
+     * Waits for the write to complete, returns the stored blob, or {@code blob} if the write failed or did not start
+     * within {@code timeoutMillis}. A write started in time is waited for, so the blob is not stored twice.
+     */
+    public Blob await(CompletableFuture<Blob> storedBlob, Blob blob, long timeoutMillis) {
+        try {
+            try {
+                return storedBlob.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (storedBlob.cancel(false)) {
+                    failed.incrementAndGet();
+                    log.warn("{} not stored ahead after {}ms, it is stored with the document", blob.getFilename(),
+                            timeoutMillis);
+                    return blob;
+                }
+                log.debug("{} still being stored after {}ms, waiting for it", blob.getFilename(), timeoutMillis);
+                return storedBlob.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException("Interrupted while storing " + blob.getFilename(), e);
+        } catch (ExecutionException e) {
+            failed.incrementAndGet();
+            log.warn("Failed to store {} ahead, it is stored with the document", blob.getFilename(), e.getCause());
+            return blob;
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Returns the number of blobs written ahead.
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * Returns the number of writes that failed, the blob was then stored with the document.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+}
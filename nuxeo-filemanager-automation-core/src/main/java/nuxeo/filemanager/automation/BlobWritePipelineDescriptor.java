@@ -0,0 +1,59 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * Global configuration of the {@link BlobWritePipeline}, shared by the rules with {@code <pipelinedBlobWrite>},
+ * contributed to the {@code configuration} extension point:
+ *
+ * <pre>
+ * &lt;blobWritePipeline threads="8" queueSize="100" /&gt;
+ * </pre>
+ *
+ * The last contribution wins.
+ *
+ * @since 2023.1
+ */
+@XObject("blobWritePipeline")
+public class BlobWritePipelineDescriptor {
+
+    public static final int DEFAULT_THREADS = 8;
+
+    public static final int DEFAULT_QUEUE_SIZE = 100;
+
+    // Max. number of blobs written at the same time
+    @XNode("@threads")
+    protected int threads = DEFAULT_THREADS;
+
+    // Max. number of writes waiting for a thread, the next blobs are stored with their document
+    @XNode("@queueSize")
+    protected int queueSize = DEFAULT_QUEUE_SIZE;
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+}
@@ -0,0 +1,290 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.ecm.automation.OperationException;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+import nuxeo.filemanager.automation.ImportMetrics.Outcome;
+
+/**
+ * Protects the callers (typically the HTTP upload threads) from the callbacks of a rule that are slow or keep failing,
+ * configured with the {@code <execution>} element of the XML configuration:
+ * <ul>
+ * <li>A timeout: the callback runs in a thread of a bounded executor, in its own transaction, and the caller stops
+ * waiting for it when the timeout expires. The callback is not stopped, its transaction is rolled back when it
+ * returns. The executor has {@code maxConcurrent} threads ({@value #DEFAULT_TIMEOUT_THREADS} if not set): when they
+ * are all busy, including with callbacks the callers stopped waiting for, the call is rejected</li>
+ * <li>A bulkhead: the max. number of concurrent calls. When reached, the call is rejected at once, there is no
+ * waiting</li>
+ * <li>A circuit breaker: after {@code failureThreshold} consecutive failures (exceptions or timeouts), the calls are
+ * rejected for {@code openDuration} ms. Then one call is let through: the circuit is closed if it succeeds, open again
+ * if it fails</li>
+ * </ul>
+ * A rejected or timed out call throws a {@link TrippedException}: the importers do as if the callback declined the
+ * import (next FileManager plugin, default FolderImporter).
+ *
+ * @since 2023.1
+ */
+public class ChainGuard {
+
+    private static final Logger log = LogManager.getLogger(ChainGuard.class);
+
+    /**
+     * The number of threads running the callbacks of a rule with a timeout and no {@code maxConcurrent}.
+     */
+    public static final int DEFAULT_TIMEOUT_THREADS = 16;
+
+    /**
+     * A callback call, as run by the importers.
+     */
+    @FunctionalInterface
+    public interface Callback<T> {
+        T call() throws OperationException, IOException;
+    }
+
+    /**
+     * Thrown when the call is rejected (bulkhead full, circuit open) or when the timeout expired.
+     */
+    public static class TrippedException extends NuxeoException {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final Outcome outcome;
+
+        public TrippedException(Outcome outcome, String message, Throwable cause) {
+            super(message, cause);
+            this.outcome = outcome;
+        }
+
+        /**
+         * {@link Outcome#REJECTED} or {@link Outcome#TIMED_OUT}.
+         */
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+    }
+
+    protected final String ruleId;
+
+    protected final long timeoutMillis;
+
+    protected final Semaphore bulkhead;
+
+    protected final int failureThreshold;
+
+    protected final long openDurationMillis;
+
+    protected final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    // The call let through when the open duration is over
+    protected final AtomicBoolean trial = new AtomicBoolean();
+
+    // 0 => closed
+    protected volatile long openUntil;
+
+    // Created only if a timeout is used
+    protected final ThreadPoolExecutor executor;
+
+    /**
+     * @param ruleId the id of the rule, for logs
+     * @param timeoutMillis 0 or less means no timeout
+     * @param maxConcurrent 0 or less means no limit
+     * @param failureThreshold 0 or less means no circuit breaker
+     * @param openDurationMillis how long the circuit stays open
+     */
+    public ChainGuard(String ruleId, long timeoutMillis, int maxConcurrent, int failureThreshold,
+            long openDurationMillis) {
+        this.ruleId = ruleId;
+        this.timeoutMillis = timeoutMillis;
+        this.failureThreshold = failureThreshold;
+        this.openDurationMillis = openDurationMillis;
+        if (timeoutMillis > 0) {
+            // The threads are the bulkhead
+            int threads = maxConcurrent > 0 ? maxConcurrent : DEFAULT_TIMEOUT_THREADS;
+            String threadName = "filemanager-automation-callback-" + ruleId + "-";
+            AtomicInteger count = new AtomicInteger();
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                Thread thread = new Thread(r, threadName + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            bulkhead = null;
+        } else {
+            executor = null;
+            bulkhead = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return executor != null || bulkhead != null || failureThreshold > 0;
+    }
+
+    /**
+     * True if the calls are currently rejected by the circuit breaker.
+     */
+    public boolean isOpen() {
+        long until = openUntil;
+        return until != 0 && System.currentTimeMillis() < until;
+    }
+
+    /**
+     * Runs the callback with the timeout, bulkhead and circuit breaker of the rule: in the current thread, or, with a
+     * timeout, in a thread of the executor of the rule and in its own transaction.
+     *
+     * @throws TrippedException if the call is rejected or if the timeout expired
+     */
+    public <T> T call(Callback<T> callback) throws OperationException, IOException {
+
+        if (!isEnabled()) {
+            return callback.call();
+        }
+
+        boolean isTrial = false;
+        if (failureThreshold > 0 && openUntil != 0) {
+            if (isOpen() || !trial.compareAndSet(false, true)) {
+                throw new TrippedException(Outcome.REJECTED, "Callback of configuration <" + ruleId
+                        + "> not called: too many failures", null);
+            }
+            isTrial = true;
+        }
+        AtomicBoolean abandoned = new AtomicBoolean();
+        Future<T> future = null;
+        try {
+            if (executor != null) {
+                future = executor.submit(() -> callInTransaction(callback, abandoned));
+            } else if (bulkhead != null && !bulkhead.tryAcquire()) {
+                throw new RejectedExecutionException();
+            }
+        } catch (RejectedExecutionException e) {
+            if (isTrial) {
+                trial.set(false);
+            }
+            throw new TrippedException(Outcome.REJECTED,
+                    "Callback of configuration <" + ruleId + "> not called: too many concurrent calls", null);
+        }
+
+        boolean success = false;
+        try {
+            T result = future == null ? callback.call() : await(future, abandoned);
+            success = true;
+            return result;
+        } finally {
+            if (bulkhead != null) {
+                bulkhead.release();
+            }
+            if (success) {
+                succeeded();
+            } else {
+                failed();
+            }
+        }
+    }
+
+    /**
+     * Waits for the callback at most the timeout, and rethrows what it threw.
+     */
+    protected <T> T await(Future<T> future, AtomicBoolean abandoned) throws OperationException, IOException {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            abandoned.set(true);
+            throw new TrippedException(Outcome.TIMED_OUT,
+                    "Callback of configuration <" + ruleId + "> still running after " + timeoutMillis + "ms", null);
+        } catch (InterruptedException e) {
+            abandoned.set(true);
+            Thread.currentThread().interrupt();
+            throw new NuxeoException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof OperationException) {
+                throw (OperationException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new NuxeoException(cause);
+        }
+    }
+
+    /**
+     * Runs the callback in a new transaction, rolled back if it fails or if the caller stopped waiting for it.
+     */
+    protected static <T> T callInTransaction(Callback<T> callback, AtomicBoolean abandoned)
+            throws OperationException, IOException {
+        TransactionHelper.startTransaction();
+        boolean success = false;
+        try {
+            T result = callback.call();
+            success = true;
+            return result;
+        } finally {
+            if (!success || abandoned.get()) {
+                TransactionHelper.setTransactionRollbackOnly();
+            }
+            TransactionHelper.commitOrRollbackTransaction();
+        }
+    }
+
+    protected void succeeded() {
+        if (failureThreshold <= 0) {
+            return;
+        }
+        consecutiveFailures.set(0);
+        if (openUntil != 0) {
+            openUntil = 0;
+            log.info("Callback of configuration <{}> is called again", ruleId);
+        }
+        trial.set(false);
+    }
+
+    protected void failed() {
+        if (failureThreshold <= 0) {
+            return;
+        }
+        // A failed trial opens the circuit again
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold || openUntil != 0) {
+            openUntil = System.currentTimeMillis() + openDurationMillis;
+            log.warn("Callback of configuration <{}> failed {} times in a row, not called for {}ms", ruleId,
+                    consecutiveFailures.get(), openDurationMillis);
+        }
+        trial.set(false);
+    }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentRef;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.PartialList;
+import org.nuxeo.ecm.core.query.sql.NXQL;
+
+/**
+ * Transaction-scoped index of the children of a parent, by content digest and by name, used to find the document to
+ * update instead of creating a duplicate. The children of a parent are loaded with a single projection query (no
+ * DocumentModel loaded) the first time the parent is looked up in the transaction, then the lookups are map reads. The
+ * index is maintained by the importers as they create and update documents. The children of a parent are dropped when
+ * another document is created in it, or when a document is deleted or trashed, in the transaction, see
+ * {@link ChildDocumentIndexListener}.
+ * <br>
+ * Children are indexed per repository and per user, so the queries apply the permissions of the user.
+ *
+ * @since 2023.1
+ */
+public class ChildDocumentIndex {
+
+    /**
+     * Context data flag set on the documents the importers create and add to the index themselves.
+     */
+    public static final String INDEXED = "fileManagerAutomationIndexed";
+
+    protected static final String FILE_NAME = "file:content/name";
+
+    protected static final String DIGEST = "file:content/digest";
+
+    protected static final String TITLE = "dc:title";
+
+    protected static final String QUERY = "SELECT " + NXQL.ECM_UUID + ", " + NXQL.ECM_NAME + ", " + TITLE + ", "
+            + FILE_NAME + ", " + DIGEST + " FROM Document WHERE " + NXQL.ECM_PARENTID + " = '%s' AND "
+            + NXQL.ECM_ISPROXY + " = 0 AND " + NXQL.ECM_ISVERSION + " = 0 AND " + NXQL.ECM_ISTRASHED + " = 0";
+
+    /**
+     * The children of a parent. When several children have the same key, the first one wins.
+     */
+    protected static class Children {
+
+        // By digest and file name or title, see digestKey
+        protected final Map<String, DocumentRef> byDigest = new HashMap<>();
+
+        protected final Map<String, DocumentRef> byFileName = new HashMap<>();
+
+        protected final Map<String, DocumentRef> byTitle = new HashMap<>();
+
+        protected final Map<String, DocumentRef> byName = new HashMap<>();
+
+        protected void add(DocumentRef ref, String name, String title, String fileName, String digest) {
+            if (digest != null) {
+                if (fileName != null) {
+                    byDigest.putIfAbsent(digestKey(digest, fileName), ref);
+                }
+                if (title != null) {
+                    byDigest.putIfAbsent(digestKey(digest, title), ref);
+                }
+            }
+            if (fileName != null) {
+                byFileName.putIfAbsent(fileName, ref);
+            }
+            if (title != null) {
+                byTitle.putIfAbsent(title, ref);
+            }
+            if (name != null) {
+                byName.putIfAbsent(name, ref);
+            }
+        }
+
+        // An updated document is not found anymore by its previous digest and names
+        protected void remove(DocumentRef ref) {
+            byDigest.values().removeIf(ref::equals);
+            byFileName.values().removeIf(ref::equals);
+            byTitle.values().removeIf(ref::equals);
+            byName.values().removeIf(ref::equals);
+        }
+
+    }
+
+    protected final TransactionLocal<Map<String, Children>> children = new TransactionLocal<>(HashMap::new);
+
+    protected final AtomicLong queries = new AtomicLong();
+
+    protected static String digestKey(String digest, String name) {
+        return digest + '/' + name;
+    }
+
+    protected static String key(CoreSession session, DocumentModel parent) {
+        return session.getRepositoryName() + ':' + session.getPrincipal().getName() + ':' + parent.getId();
+    }
+
+    protected Children getChildren(CoreSession session, DocumentModel parent) {
+        Map<String, Children> all = children.get();
+        if (all == null) {
+            // No transaction => nothing kept
+            return load(session, parent);
+        }
+        return all.computeIfAbsent(key(session, parent), k -> load(session, parent));
+    }
+
+    protected Children load(CoreSession session, DocumentModel parent) {
+        queries.incrementAndGet();
+        PartialList<Map<String, Serializable>> rows = session.queryProjection(
+                String.format(QUERY, NXQL.escapeStringInner(parent.getId())), 0, 0);
+        Children loaded = new Children();
+        for (Map<String, Serializable> row : rows) {
+            loaded.add(new IdRef((String) row.get(NXQL.ECM_UUID)), (String) row.get(NXQL.ECM_NAME),
+                    (String) row.get(TITLE), (String) row.get(FILE_NAME), (String) row.get(DIGEST));
+        }
+        return loaded;
+    }
+
+    /**
+     * Returns the child of the parent whose main blob has this digest and this file name, or this title, or null.
+     */
+    public DocumentRef findByDigest(CoreSession session, DocumentModel parent, String digest, String name) {
+        if (digest == null || name == null) {
+            return null;
+        }
+        return getChildren(session, parent).byDigest.get(digestKey(digest, name));
+    }
+
+    /**
+     * Returns the child of the parent with this file name, title or name, in that order, or null.
+     */
+    public DocumentRef findByName(CoreSession session, DocumentModel parent, String name) {
+        if (name == null) {
+            return null;
+        }
+        Children indexed = getChildren(session, parent);
+        DocumentRef ref = indexed.byFileName.get(name);
+        if (ref == null) {
+            ref = indexed.byTitle.get(name);
+        }
+        if (ref == null) {
+            ref = indexed.byName.get(name);
+        }
+        return ref;
+    }
+
+    /**
+     * Adds a document created (or updated) in the parent during the transaction.
+     */
+    public void add(CoreSession session, DocumentModel parent, DocumentModel child) {
+        Map<String, Children> all = children.get();
+        Children indexed = all == null ? null : all.get(key(session, parent));
+        if (indexed == null || child == null) {
+            // Parent not loaded yet => will be found by the query
+            return;
+        }
+        String fileName = null;
+        String digest = null;
+        if (child.hasSchema("file")) {
+            Blob blob = (Blob) child.getPropertyValue("file:content");
+            if (blob != null) {
+                fileName = blob.getFilename();
+                digest = blob.getDigest();
+            }
+        }
+        indexed.remove(child.getRef());
+        indexed.add(child.getRef(), child.getName(), child.getTitle(), fileName, digest);
+    }
+
+    /**
+     * Drops the children of the parent loaded in the current transaction: they are loaded again when next looked up.
+     */
+    public void invalidate(DocumentRef parentRef) {
+        Map<String, Children> all = children.get();
+        if (all != null) {
+            String suffix = ":" + parentRef.reference();
+            all.keySet().removeIf(key -> key.endsWith(suffix));
+        }
+    }
+
+    /**
+     * Drops all the children loaded in the current transaction.
+     */
+    public void invalidate() {
+        Map<String, Children> all = children.get();
+        if (all != null) {
+            all.clear();
+        }
+    }
+
+    /**
+     * Returns the number of queries run to load the children.
+     */
+    public long getQueries() {
+        return queries.get();
+    }
+
+}
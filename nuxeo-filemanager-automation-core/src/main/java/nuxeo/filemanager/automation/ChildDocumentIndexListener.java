@@ -0,0 +1,55 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.event.DocumentEventTypes;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventContext;
+import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Keeps the {@link ChildDocumentIndex} of the transaction up to date with the documents created, deleted, trashed or
+ * moved by something else than the importers (the callback chains, the other FileManager plugins, ...).
+ *
+ * @since 2023.1
+ */
+public class ChildDocumentIndexListener implements EventListener {
+
+    @Override
+    public void handleEvent(Event event) {
+        EventContext ctx = event.getContext();
+        if (!(ctx instanceof DocumentEventContext)
+                || Boolean.TRUE.equals(ctx.getProperty(ChildDocumentIndex.INDEXED))) {
+            // Added to the index by the importer
+            return;
+        }
+        DocumentModel doc = ((DocumentEventContext) ctx).getSourceDocument();
+        ChildDocumentIndex index = Framework.getService(FileImporterAutomationService.class).getChildDocumentIndex();
+        if (DocumentEventTypes.DOCUMENT_MOVED.equals(event.getName()) || doc == null || doc.getParentRef() == null) {
+            // The previous parent is not known
+            index.invalidate();
+        } else {
+            index.invalidate(doc.getParentRef());
+        }
+    }
+
+}
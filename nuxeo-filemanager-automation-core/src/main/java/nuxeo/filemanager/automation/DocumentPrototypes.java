@@ -0,0 +1,170 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.automation.core.util.DocumentHelper;
+import org.nuxeo.ecm.automation.core.util.Properties;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.impl.DocumentModelImpl;
+import org.nuxeo.ecm.core.api.model.Property;
+import org.nuxeo.ecm.core.api.model.PropertyNotFoundException;
+import org.nuxeo.ecm.core.schema.types.SimpleType;
+import org.nuxeo.ecm.core.schema.types.Type;
+import org.nuxeo.ecm.core.schema.types.primitives.BooleanType;
+import org.nuxeo.ecm.core.schema.types.primitives.DoubleType;
+import org.nuxeo.ecm.core.schema.types.primitives.IntegerType;
+import org.nuxeo.ecm.core.schema.types.primitives.LongType;
+import org.nuxeo.ecm.core.schema.types.primitives.StringType;
+
+/**
+ * Cache of prototype documents and of the setters of their properties, used by the rules with
+ * {@code <documentPrototypes>true</documentPrototypes>}.
+ * <br>
+ * A prototype is built once per repository, user, parent type and document type with
+ * {@code CoreSession#createDocumentModel(String, String, String)}, in the first parent a document of this type is
+ * imported in by this user. So the listeners of the {@code emptyDocumentModelCreated} event run once, not for each
+ * file: the initial values they set may depend on the user and on the type of the parent, not on the parent itself.
+ * Each document is then a copy of the prototype.
+ * <br>
+ * The setters, cached per repository and document type, decode the string, integer, long, double and boolean
+ * properties with the type resolved the first time. The other properties (dates, lists, complex properties, blobs) are
+ * set with {@link DocumentHelper#setProperty(CoreSession, DocumentModel, String, String)}, as without prototypes.
+ * <br>
+ * The cache is cleared when the configuration changes and when the component is started, so after a hot reload of the
+ * schemas or of the document types.
+ *
+ * @since 2023.1
+ */
+public class DocumentPrototypes {
+
+    // repository:user:parentType:type => prototype
+    protected final Map<String, DocumentModel> prototypes = new ConcurrentHashMap<>();
+
+    // repository:type => xpath => setter, compiled on first use
+    protected final Map<String, Map<String, PropertySetter>> setters = new ConcurrentHashMap<>();
+
+    protected final AtomicLong hits = new AtomicLong();
+
+    protected final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Sets a property from its string value, as returned by the FileImporter callback.
+     */
+    @FunctionalInterface
+    protected interface PropertySetter {
+        void set(CoreSession session, DocumentModel doc, String value) throws IOException;
+    }
+
+    protected static PropertySetter compile(DocumentModel doc, String xpath) {
+        Property property;
+        try {
+            property = doc.getProperty(xpath);
+        } catch (PropertyNotFoundException e) {
+            // DocumentHelper reports the error
+            return genericSetter(xpath);
+        }
+        Type type = property.getType();
+        if (!type.isSimpleType()) {
+            return genericSetter(xpath);
+        }
+        Type primitive = ((SimpleType) type).getPrimitiveType();
+        if (primitive instanceof StringType) {
+            return (session, d, value) -> d.setPropertyValue(xpath, StringUtils.isEmpty(value) ? null : value);
+        }
+        if (primitive instanceof LongType || primitive instanceof IntegerType || primitive instanceof DoubleType
+                || primitive instanceof BooleanType) {
+            return (session, d, value) -> d.setPropertyValue(xpath,
+                    StringUtils.isEmpty(value) ? null : (Serializable) primitive.decode(value));
+        }
+        return genericSetter(xpath);
+    }
+
+    protected static PropertySetter genericSetter(String xpath) {
+        return (session, doc, value) -> DocumentHelper.setProperty(session, doc, xpath, value);
+    }
+
+    protected static String key(CoreSession session, DocumentModel parentDoc, String type) {
+        return session.getRepositoryName() + ':' + session.getPrincipal().getName() + ':' + parentDoc.getType() + ':'
+                + type;
+    }
+
+    protected DocumentModel getPrototype(CoreSession session, DocumentModel parentDoc, String name, String type) {
+        String key = key(session, parentDoc, type);
+        DocumentModel prototype = prototypes.get(key);
+        if (prototype != null) {
+            hits.incrementAndGet();
+            return prototype;
+        }
+        misses.incrementAndGet();
+        return prototypes.computeIfAbsent(key,
+                k -> session.createDocumentModel(parentDoc.getPathAsString(), name, type));
+    }
+
+    /**
+     * Returns a new document (not created) of type {@code type} in the parent, copied from the prototype of the user,
+     * the type of the parent and the type.
+     */
+    public DocumentModel newDocumentModel(CoreSession session, DocumentModel parentDoc, String name, String type) {
+        DocumentModel prototype = getPrototype(session, parentDoc, name, type);
+        DocumentModel doc = new DocumentModelImpl(parentDoc.getPathAsString(), name, type);
+        doc.copyContent(prototype);
+        return doc;
+    }
+
+    /**
+     * Sets the properties on the document, with the setters compiled for its type.
+     */
+    public void setProperties(CoreSession session, DocumentModel doc, Properties properties) throws IOException {
+        Map<String, PropertySetter> typeSetters = setters.computeIfAbsent(
+                session.getRepositoryName() + ':' + doc.getType(), k -> new ConcurrentHashMap<>());
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            typeSetters.computeIfAbsent(property.getKey(), xpath -> compile(doc, xpath))
+                       .set(session, doc, property.getValue());
+        }
+    }
+
+    public void clear() {
+        prototypes.clear();
+        setters.clear();
+    }
+
+    /**
+     * Returns the number of prototypes, one per repository, user, parent type and document type.
+     */
+    public int size() {
+        return prototypes.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.runtime.api.Framework;
+
+import nuxeo.filemanager.automation.EnrichmentWork.Enrichment;
+
+/**
+ * Collects the documents to enrich during a transaction, and schedules them once it is committed, in
+ * {@link EnrichmentWork}s of {@code batchSize} documents. Nothing is scheduled if the transaction is rolled back.
+ * Outside of a transaction, the work is scheduled right away.
+ *
+ * @since 2023.1
+ */
+public class EnrichmentBatcher {
+
+    // repository => rule => documents
+    protected final TransactionLocal<Map<String, Map<ImportRule, List<Enrichment>>>> pending = new TransactionLocal<>(
+            HashMap::new, this::schedule);
+
+    /**
+     * Enriches the document once the current transaction is committed, as the user of the session, with the
+     * properties of the decision and the enrichment chain of the rule.
+     */
+    public void add(ImportRule rule, CoreSession session, DocumentModel doc, ImportDecision decision) {
+        Enrichment enrichment = new Enrichment(doc.getId(), session.getPrincipal().getName(), decision);
+        Map<String, Map<ImportRule, List<Enrichment>>> enrichments = pending.get();
+        if (enrichments == null) {
+            schedule(doc.getRepositoryName(), rule, List.of(enrichment));
+            return;
+        }
+        enrichments.computeIfAbsent(doc.getRepositoryName(), k -> new LinkedHashMap<>())
+                   .computeIfAbsent(rule, k -> new ArrayList<>())
+                   .add(enrichment);
+    }
+
+    protected void schedule(Map<String, Map<ImportRule, List<Enrichment>>> enrichments) {
+        for (Map.Entry<String, Map<ImportRule, List<Enrichment>>> byRepository : enrichments.entrySet()) {
+            for (Map.Entry<ImportRule, List<Enrichment>> byRule : byRepository.getValue().entrySet()) {
+                schedule(byRepository.getKey(), byRule.getKey(), byRule.getValue());
+            }
+        }
+    }
+
+    protected void schedule(String repositoryName, ImportRule rule, List<Enrichment> enrichments) {
+        WorkManager workManager = Framework.getService(WorkManager.class);
+        int batchSize = rule.getEnrichmentBatchSize();
+        for (int i = 0; i < enrichments.size(); i += batchSize) {
+            workManager.schedule(new EnrichmentWork(repositoryName, rule.getEnrichmentQueue(),
+                    rule.getEnrichmentChainId(), EnrichmentWork.Callback.of(rule),
+                    enrichments.subList(i, Math.min(i + batchSize, enrichments.size()))));
+        }
+    }
+
+}
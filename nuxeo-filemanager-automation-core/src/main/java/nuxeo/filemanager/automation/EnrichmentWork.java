@@ -0,0 +1,324 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.ecm.automation.AutomationService;
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.OperationException;
+import org.nuxeo.ecm.automation.core.util.DocumentHelper;
+import org.nuxeo.ecm.automation.core.util.Properties;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.work.AbstractWork;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+import nuxeo.filemanager.automation.ImportMetrics.Outcome;
+import nuxeo.filemanager.automation.ImportMetrics.Phase;
+
+/**
+ * Sets, asynchronously, the properties decided by the FileImporter callback on documents already created (split
+ * mode, see {@code <enrichment>} in the XML configuration), then calls the optional enrichment chain with each
+ * document as input. The documents imported in a transaction are grouped in works of {@code batchSize} documents by
+ * the {@link EnrichmentBatcher}.
+ * <br>
+ * With {@code enrichment@docType}, the documents were created without calling the FileImporter chain: the work calls
+ * it first, with the blob of the document, and sets the title and the properties it decides. The type of the document
+ * is not changed. If the chain declines the import, the document is kept as created and counted as declined.
+ * <br>
+ * Each document is enriched in its own transaction: a document that fails is logged and rolled back, the others of the
+ * work are enriched anyway.
+ *
+ * @since 2023.1
+ */
+public class EnrichmentWork extends AbstractWork {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger log = LogManager.getLogger(EnrichmentWork.class);
+
+    public static final String TITLE = "FileManager Automation Enrichment";
+
+    // callback => documents enriched in the transaction of the work, counted once it is committed
+    protected static final TransactionLocal<Map<String, Integer>> ENRICHED = new TransactionLocal<>(HashMap::new,
+            EnrichmentWork::countEnriched);
+
+    /**
+     * The properties of a document, as decided by the callback.
+     */
+    public static class Enrichment implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final String docId;
+
+        protected final String username;
+
+        protected final Properties properties;
+
+        protected final HashMap<String, Serializable> values;
+
+        /**
+         * @param username the user who imported the document, the work enriches it as this user
+         * @param decision null if the FileImporter chain is called by the work
+         */
+        public Enrichment(String docId, String username, ImportDecision decision) {
+            this.docId = docId;
+            this.username = username;
+            properties = decision == null ? null : decision.getProperties();
+            values = decision == null || decision.getValues() == null ? null : new HashMap<>(decision.getValues());
+        }
+
+        public String getDocId() {
+            return docId;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+    }
+
+    /**
+     * The FileImporter chain of a rule, called by the work with {@code enrichment@docType}.
+     */
+    public static class Callback implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final String chainId;
+
+        protected final boolean metadataInput;
+
+        protected final int headerBytes;
+
+        public Callback(String chainId, boolean metadataInput, int headerBytes) {
+            this.chainId = chainId;
+            this.metadataInput = metadataInput;
+            this.headerBytes = headerBytes;
+        }
+
+        /**
+         * Returns the FileImporter chain of the rule if the work calls it, else null.
+         */
+        public static Callback of(ImportRule rule) {
+            if (!rule.isDeferredCallback() || rule.getFileChainId() == null) {
+                return null;
+            }
+            return new Callback(rule.getFileChainId(), rule.isMetadataInput(), rule.getHeaderBytes());
+        }
+
+    }
+
+    protected final String category;
+
+    protected final String chainId;
+
+    protected final Callback callback;
+
+    protected final List<Enrichment> enrichments;
+
+    /**
+     * @param category the category of the work, routed to the queue handling it
+     * @param chainId the chain to call after setting the properties, can be null
+     * @param callback the FileImporter chain to call first, can be null
+     */
+    public EnrichmentWork(String repositoryName, String category, String chainId, Callback callback,
+            List<Enrichment> enrichments) {
+        this.category = category;
+        this.chainId = chainId;
+        this.callback = callback;
+        this.enrichments = new ArrayList<>(enrichments);
+        List<String> docIds = new ArrayList<>(enrichments.size());
+        for (Enrichment enrichment : enrichments) {
+            docIds.add(enrichment.getDocId());
+        }
+        setDocuments(repositoryName, docIds);
+    }
+
+    @Override
+    public String getCategory() {
+        return category;
+    }
+
+    @Override
+    public String getTitle() {
+        return TITLE;
+    }
+
+    public List<Enrichment> getEnrichments() {
+        return enrichments;
+    }
+
+    @Override
+    public void work() {
+        ImportMetrics metrics = Framework.getService(FileImporterAutomationService.class).getMetrics();
+        String callbackId = chainId;
+        int done = 0;
+        setProgress(new Progress(0, enrichments.size()));
+        for (Enrichment enrichment : enrichments) {
+            long start = System.nanoTime();
+            try {
+                // As the user who imported the document
+                session = CoreInstance.getCoreSession(repositoryName, enrichment.username);
+                IdRef ref = new IdRef(enrichment.docId);
+                if (session.exists(ref) && enrich(session.getDocument(ref), enrichment)) {
+                    enriched(callbackId);
+                }
+            } catch (RuntimeException e) {
+                // Only the changes of this document are rolled back
+                TransactionHelper.setTransactionRollbackOnly();
+                log.warn("Failed to enrich document {}", enrichment.docId, e);
+                metrics.count(Outcome.FAILED, callbackId);
+            }
+            nextTransaction(enrichment, metrics, callbackId);
+            metrics.time(Phase.ENRICHMENT, callbackId, start);
+            setProgress(new Progress(++done, enrichments.size()));
+        }
+    }
+
+    /**
+     * Commits the enrichment of a document, or rolls it back if it failed, and starts the transaction of the next one.
+     */
+    protected void nextTransaction(Enrichment enrichment, ImportMetrics metrics, String callbackId) {
+        if (!TransactionHelper.isTransactionActiveOrMarkedRollback()) {
+            return;
+        }
+        boolean rollback = TransactionHelper.isTransactionMarkedRollback();
+        try {
+            TransactionHelper.commitOrRollbackTransaction();
+        } catch (RuntimeException e) {
+            if (!rollback) {
+                log.warn("Failed to commit the enrichment of document {}", enrichment.docId, e);
+                metrics.count(Outcome.FAILED, callbackId);
+            }
+        }
+        TransactionHelper.startTransaction();
+    }
+
+    protected static void enriched(String callbackId) {
+        Map<String, Integer> enriched = ENRICHED.get();
+        if (enriched == null) {
+            // No transaction => saved already
+            countEnriched(Collections.singletonMap(callbackId, 1));
+        } else {
+            enriched.merge(callbackId, 1, Integer::sum);
+        }
+    }
+
+    protected static void countEnriched(Map<String, Integer> enriched) {
+        ImportMetrics metrics = Framework.getService(FileImporterAutomationService.class).getMetrics();
+        enriched.forEach((callbackId, count) -> metrics.count(Outcome.ENRICHED, callbackId, count));
+    }
+
+    /**
+     * Enriches the document and saves it. Returns false if the FileImporter chain declined the import: the document is
+     * then kept as created, with the file name as title, and is not enriched.
+     */
+    protected boolean enrich(DocumentModel doc, Enrichment enrichment) {
+        if (callback != null) {
+            ImportDecision decision = decide(doc);
+            if (decision == null) {
+                log.info("The FileImporter chain <{}> declined document {}, it is kept as a {} and not enriched",
+                        callback.chainId, doc.getId(), doc.getType());
+                ImportMetrics metrics = Framework.getService(FileImporterAutomationService.class).getMetrics();
+                metrics.count(Outcome.DECLINED, callback.chainId);
+                return false;
+            }
+            if (!doc.getType().equals(decision.getDocType())) {
+                log.warn("Document {} is kept as a {}, the FileImporter chain <{}> decided {}", doc.getId(),
+                        doc.getType(), callback.chainId, decision.getDocType());
+            }
+            if (StringUtils.isNotBlank(decision.getTitle())) {
+                doc.setPropertyValue("dc:title", decision.getTitle());
+            }
+            setProperties(doc, decision.getProperties(), decision.getValues());
+        }
+        setProperties(doc, enrichment.properties, enrichment.values);
+        if (chainId != null) {
+            OperationContext octx = new OperationContext(session);
+            octx.setInput(doc);
+            try {
+                Object result = Framework.getService(AutomationService.class).run(octx, chainId);
+                if (result instanceof DocumentModel) {
+                    doc = (DocumentModel) result;
+                }
+            } catch (OperationException e) {
+                throw new NuxeoException("Failed to run the enrichment chain <" + chainId + ">", e);
+            }
+        }
+        session.saveDocument(doc);
+        return true;
+    }
+
+    protected void setProperties(DocumentModel doc, Properties properties, Map<String, Serializable> values) {
+        if (properties != null) {
+            try {
+                DocumentHelper.setProperties(session, doc, properties);
+            } catch (IOException e) {
+                throw new NuxeoException("Failed to set the properties of document " + doc.getId(), e);
+            }
+        }
+        if (values != null) {
+            for (Map.Entry<String, Serializable> value : values.entrySet()) {
+                doc.setPropertyValue(value.getKey(), value.getValue());
+            }
+        }
+    }
+
+    /**
+     * Calls the FileImporter chain with the blob of the document, as the import would have. Returns its decision, null
+     * if it declined the import.
+     */
+    protected ImportDecision decide(DocumentModel doc) {
+        Blob blob = doc.hasSchema("file") ? (Blob) doc.getPropertyValue("file:content") : null;
+        if (blob == null) {
+            return null;
+        }
+        ImportMetrics metrics = Framework.getService(FileImporterAutomationService.class).getMetrics();
+        long start = System.nanoTime();
+        OperationContext octx = new OperationContext(session);
+        try {
+            FileImporterAutomationServiceImpl.runFileChain(callback.chainId, callback.metadataInput,
+                    callback.headerBytes, octx, blob, blob.getFilename(), session.getParentDocument(doc.getRef()));
+            start = metrics.time(Phase.CHAIN, callback.chainId, start);
+            ImportDecision decision = ImportDecisionParser.parse(
+                    octx.get(FileImporterAutomationService.CALLBACK_FILEIMPORTER_CTX_VAR_NAME));
+            metrics.time(Phase.PARSE, callback.chainId, start);
+            return decision;
+        } catch (OperationException | IOException e) {
+            throw new NuxeoException("Failed to run the FileManager callback chain <" + callback.chainId + ">", e);
+        }
+    }
+
+}
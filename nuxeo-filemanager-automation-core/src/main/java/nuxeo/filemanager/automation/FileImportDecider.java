@@ -0,0 +1,45 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.platform.filemanager.api.FileImporterContext;
+
+/**
+ * Java alternative to the FileImporter callback chain, contributed with the {@code <fileImportDecider>} element of
+ * the XML configuration. When set, it is used instead of the {@code defaultChain}, with no automation, scripting or
+ * JSON involved.
+ * <br>
+ * Implementations must be thread safe and have a public no-arg constructor.
+ *
+ * @since 2023.1
+ */
+public interface FileImportDecider {
+
+    /**
+     * Returns the type of document to create and its properties, or null to do nothing (the FileManager then calls
+     * the next file importer plugin).
+     *
+     * @param context the import context (blob, session, ...)
+     * @param parentDoc the container where the document is to be created
+     * @return a decision or null
+     */
+    ImportDecision decide(FileImporterContext context, DocumentModel parentDoc);
+
+}
@@ -18,7 +18,12 @@
  */
 package nuxeo.filemanager.automation;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
 import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XNodeList;
 import org.nuxeo.common.xmap.annotation.XObject;
 
 /**
@@ -27,12 +32,182 @@ import org.nuxeo.common.xmap.annotation.XObject;
 @XObject("configuration")
 public class FileImporterAutomationDescriptor {
 
+    // The id of the configuration when no id is set
+    public static final String DEFAULT_ID = "default";
+
+    public static final String CHAIN_INPUT_BLOB = "blob";
+
+    public static final String CHAIN_INPUT_METADATA = "metadata";
+
+    public static final String DEFAULT_ENRICHMENT_QUEUE = "fileManagerAutomationEnrichment";
+
+    public static final String DEFAULT_REPLAY_QUEUE = "fileManagerAutomationReplay";
+
+    // Several configurations (rules) can be contributed, with different ids
+    @XNode("@id")
+    protected String id;
+
     @XNode("defaultChain")
     protected String chainId;
     
     @XNode("folderImporterChain")
     protected String folderImporterChain;
 
+    // Optional, used by createFolderishHierarchy: returns the type of all the Folderish of a tree at once
+    @XNode("folderHierarchyChain")
+    protected String folderHierarchyChain;
+
+    // Optional Java alternatives to the chains
+    @XNode("fileImportDecider")
+    protected Class<? extends FileImportDecider> fileImportDeciderClass;
+
+    @XNode("folderishFactory")
+    protected Class<? extends FolderishFactory> folderishFactoryClass;
+
+    // Optional, used by createOrUpdateBatch
+    @XNode("batchChain")
+    protected String batchChain;
+
+    // Optional cache of the FileImporter callback decisions, see ImportDecisionCache
+    @XNode("decisionCache@enabled")
+    protected boolean decisionCacheEnabled;
+
+    @XNode("decisionCache@maxSize")
+    protected int decisionCacheMaxSize = 1000;
+
+    // In seconds, 0 => no expiration
+    @XNode("decisionCache@ttl")
+    protected long decisionCacheTTL = 300;
+
+    // Properties returned by the callback that depend on the file, not reused for the other files
+    @XNodeList(value = "decisionCache/perFileProperty", type = ArrayList.class, componentType = String.class)
+    protected List<String> decisionCachePerFileProperties = new ArrayList<>();
+
+    // Optional pre-filters of the FileImporter, see ImportFilter
+    @XNodeList(value = "filters/mimeType", type = ArrayList.class, componentType = String.class)
+    protected List<String> filterMimeTypes = new ArrayList<>();
+
+    @XNodeList(value = "filters/extension", type = ArrayList.class, componentType = String.class)
+    protected List<String> filterExtensions = new ArrayList<>();
+
+    @XNodeList(value = "filters/parentType", type = ArrayList.class, componentType = String.class)
+    protected List<String> filterParentTypes = new ArrayList<>();
+
+    @XNodeList(value = "filters/parentPath", type = ArrayList.class, componentType = String.class)
+    protected List<String> filterParentPaths = new ArrayList<>();
+
+    // In bytes, 0 or less => no limit
+    @XNode("filters/maxSize")
+    protected long filterMaxSize = -1;
+
+    // "blob" (default) or "metadata": the FileImporter chain receives only the file name, mime type, length and digest
+    @XNode("chainInput")
+    protected String chainInput = CHAIN_INPUT_BLOB;
+
+    // With metadata input: number of bytes of the beginning of the file passed to the chain, 0 => none
+    @XNode("chainInput@headerBytes")
+    protected int headerBytes = 0;
+
+    // Optional update of the existing documents instead of creating duplicates, see ChildDocumentIndex
+    @XNode("update@byDigest")
+    protected boolean updateByDigest;
+
+    @XNode("update@byName")
+    protected boolean updateByName;
+
+    // none, minor or major
+    @XNode("update@versioning")
+    protected String updateVersioning = "none";
+
+    // Must be the algorithm of the blob provider
+    @XNode("update@digestAlgorithm")
+    protected String digestAlgorithm = "MD5";
+
+    // Optional split mode: the document is created with its type, title and blob, the properties are set later by an
+    // EnrichmentWork
+    @XNode("enrichment@enabled")
+    protected boolean enrichmentEnabled;
+
+    // The category of the works, routed to the queue handling it
+    @XNode("enrichment@queue")
+    protected String enrichmentQueue = DEFAULT_ENRICHMENT_QUEUE;
+
+    // Max. number of documents per work
+    @XNode("enrichment@batchSize")
+    protected int enrichmentBatchSize = 50;
+
+    // Optional, called by the work with the document as input
+    @XNode("enrichment@chain")
+    protected String enrichmentChain;
+
+    // Optional: the type of the documents created right away, the FileImporter chain is then called by the work
+    @XNode("enrichment@docType")
+    protected String enrichmentDocType;
+
+    // Optional bulk import mode: context data flags set on the documents created or updated, to disable listeners
+    @XNodeList(value = "listeners/disable", type = ArrayList.class, componentType = String.class)
+    protected List<String> disabledListenerFlags = new ArrayList<>();
+
+    // Events fired again on the documents once the transaction is committed, by a ListenerReplayWork
+    @XNodeList(value = "listeners/replay/event", type = ArrayList.class, componentType = String.class)
+    protected List<String> replayEvents = new ArrayList<>();
+
+    // Optional, called by the work with the list of documents as input
+    @XNode("listeners/replay@chain")
+    protected String replayChain;
+
+    // The category of the works, routed to the queue handling it
+    @XNode("listeners/replay@queue")
+    protected String replayQueue = DEFAULT_REPLAY_QUEUE;
+
+    // Max. number of documents per work
+    @XNode("listeners/replay@batchSize")
+    protected int replayBatchSize = 100;
+
+    // Optional protection against slow or failing callbacks, see ChainGuard. In ms, 0 => no timeout
+    @XNode("execution@timeout")
+    protected long executionTimeout;
+
+    // 0 => no limit
+    @XNode("execution@maxConcurrent")
+    protected int executionMaxConcurrent;
+
+    // Consecutive failures opening the circuit breaker, 0 => no circuit breaker
+    @XNode("execution@failureThreshold")
+    protected int executionFailureThreshold;
+
+    // In ms
+    @XNode("execution@openDuration")
+    protected long executionOpenDuration = 30000;
+
+    // Optional: build the documents from a cached prototype of their type, see DocumentPrototypes
+    @XNode("documentPrototypes")
+    protected boolean documentPrototypes;
+
+    // Optional: store the blob while the callback decides, see BlobWritePipeline
+    @XNode("pipelinedBlobWrite")
+    protected boolean pipelinedBlobWrite;
+
+    // Smaller blobs are stored with the document, as usual
+    @XNode("pipelinedBlobWrite@minSize")
+    protected long pipelinedBlobWriteMinSize = 1024 * 1024;
+
+    // How long the import waits for the blob after the callback, then it is stored with the document
+    @XNode("pipelinedBlobWrite@timeout")
+    protected long pipelinedBlobWriteTimeout = 60_000;
+
+    // The blob provider the blob dispatcher uses for the documents of this configuration, default the repository's
+    @XNode("pipelinedBlobWrite@provider")
+    protected String pipelinedBlobWriteProvider;
+
+    // Optional: run the chains once at startup, in a rolled back transaction
+    @XNode("warmUp")
+    protected boolean warmUp;
+
+    public String getId() {
+        return StringUtils.defaultIfBlank(id, DEFAULT_ID);
+    }
+
     public String getChainId() {
         return chainId;
     }
@@ -41,4 +216,165 @@ public class FileImporterAutomationDescriptor {
         return folderImporterChain;
     }
 
+    public String getFolderHierarchyChain() {
+        return folderHierarchyChain;
+    }
+
+    public Class<? extends FileImportDecider> getFileImportDeciderClass() {
+        return fileImportDeciderClass;
+    }
+
+    public Class<? extends FolderishFactory> getFolderishFactoryClass() {
+        return folderishFactoryClass;
+    }
+
+    public String getBatchChain() {
+        return batchChain;
+    }
+
+    public boolean isDecisionCacheEnabled() {
+        return decisionCacheEnabled;
+    }
+
+    public int getDecisionCacheMaxSize() {
+        return decisionCacheMaxSize;
+    }
+
+    public long getDecisionCacheTTL() {
+        return decisionCacheTTL;
+    }
+
+    public List<String> getDecisionCachePerFileProperties() {
+        return decisionCachePerFileProperties;
+    }
+
+    public List<String> getFilterMimeTypes() {
+        return filterMimeTypes;
+    }
+
+    public List<String> getFilterExtensions() {
+        return filterExtensions;
+    }
+
+    public List<String> getFilterParentTypes() {
+        return filterParentTypes;
+    }
+
+    public List<String> getFilterParentPaths() {
+        return filterParentPaths;
+    }
+
+    public long getFilterMaxSize() {
+        return filterMaxSize;
+    }
+
+    public String getChainInput() {
+        return chainInput;
+    }
+
+    public int getHeaderBytes() {
+        return headerBytes;
+    }
+
+    public boolean isUpdateByDigest() {
+        return updateByDigest;
+    }
+
+    public boolean isUpdateByName() {
+        return updateByName;
+    }
+
+    public String getUpdateVersioning() {
+        return updateVersioning;
+    }
+
+    public String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    public boolean isEnrichmentEnabled() {
+        return enrichmentEnabled;
+    }
+
+    public String getEnrichmentQueue() {
+        return enrichmentQueue;
+    }
+
+    public int getEnrichmentBatchSize() {
+        return enrichmentBatchSize;
+    }
+
+    public String getEnrichmentChain() {
+        return enrichmentChain;
+    }
+
+    public String getEnrichmentDocType() {
+        return enrichmentDocType;
+    }
+
+    public List<String> getDisabledListenerFlags() {
+        return disabledListenerFlags;
+    }
+
+    public List<String> getReplayEvents() {
+        return replayEvents;
+    }
+
+    public String getReplayChain() {
+        return replayChain;
+    }
+
+    public String getReplayQueue() {
+        return replayQueue;
+    }
+
+    public int getReplayBatchSize() {
+        return replayBatchSize;
+    }
+
+    public long getExecutionTimeout() {
+        return executionTimeout;
+    }
+
+    public int getExecutionMaxConcurrent() {
+        return executionMaxConcurrent;
+    }
+
+    public int getExecutionFailureThreshold() {
+        return executionFailureThreshold;
+    }
+
+    public long getExecutionOpenDuration() {
+        return executionOpenDuration;
+    }
+
+    public boolean isDocumentPrototypes() {
+        return documentPrototypes;
+    }
+
+    public boolean isPipelinedBlobWrite() {
+        return pipelinedBlobWrite;
+    }
+
+    public long getPipelinedBlobWriteMinSize() {
+        return pipelinedBlobWriteMinSize;
+    }
+
+    public long getPipelinedBlobWriteTimeout() {
+        return pipelinedBlobWriteTimeout;
+    }
+
+    public String getPipelinedBlobWriteProvider() {
+        return pipelinedBlobWriteProvider;
+    }
+
+    public boolean isWarmUp() {
+        return warmUp;
+    }
+
+    public boolean hasFilters() {
+        return !filterMimeTypes.isEmpty() || !filterExtensions.isEmpty() || !filterParentTypes.isEmpty()
+                || !filterParentPaths.isEmpty() || filterMaxSize > 0;
+    }
+
 }
@@ -18,8 +18,12 @@
  */
 package nuxeo.filemanager.automation;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentRef;
 import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.platform.filemanager.api.FileImporterContext;
 import org.nuxeo.ecm.platform.types.TypeManager;
@@ -33,9 +37,25 @@ public interface FileImporterAutomationService {
 
     String CALLBACK_PARAM_PARENT_TYPE = "parent_type";
 
+    // Only for FileImporter, with <chainInput>metadata</chainInput>: the chain has no input
+    String CALLBACK_PARAM_FILE_NAME = "file_name";
+
+    String CALLBACK_PARAM_MIME_TYPE = "mime_type";
+
+    String CALLBACK_PARAM_FILE_LENGTH = "file_length";
+
+    // Not set if the blob has no digest
+    String CALLBACK_PARAM_DIGEST = "digest";
+
+    // A read-only ByteBuffer with the first bytes of the file, if headerBytes is set
+    String CALLBACK_HEADER_CTX_VAR_NAME = "FileImporterAutomation_Header";
+
     // Only for FolderImporter
     String CALLBACK_PARAM_FOLDERISH_TITLE = "title";
 
+    // Only for the Folderish hierarchy chain: the list of the relative paths of the folders ("a", "a/b", ...)
+    String CALLBACK_PARAM_FOLDERISH_PATHS = "folder_paths";
+
     // Used only by the FileManager (not folderImporter). If null or "" => no creation, move to next importer plugin
     // (FileImporter)
     String CALLBACK_RESULT_DOCTYPE = "docType";
@@ -54,9 +74,15 @@ public interface FileImporterAutomationService {
      *     "properties": optional. JSON object to setup the fields
      *   }
      * </code>
+     * The context variable can also be a Map (or a JavaScript object) with the same fields, used as is with no JSON
+     * parsing.
+     * With the metadata chain input, the chain has no input: it receives the file name, mime type, length and digest as
+     * parameters (and optionally the first bytes of the file), and the original blob is imported.
      * If the chain returns null or "" => the method returns null, so the FileManager can call the next file importer
      * plugin.
      * <br>
+     * If a {@link FileImportDecider} is set in the XML configuration, it is used instead of the chain.
+     * <br>
      * TODO: Make it simple => Change the logic and let the chain create the DocumentModel, do not ask it to return
      * values and properties
      * 
@@ -67,6 +93,25 @@ public interface FileImporterAutomationService {
      */
     DocumentModel createOrUpdate(FileImporterContext context) throws NuxeoException;
 
+    /**
+     * Batch version of {@link #createOrUpdate(FileImporterContext)}, for bulk imports. All the contexts must use the
+     * same session.
+     * <br>
+     * If a batchChain is set in the XML configuration, it is called once per parent (for all the files to import in
+     * this parent), with the list of blobs as input and the same parameters as the default chain. It returns, in the
+     * CALLBACK_FILEIMPORTER_CTX_VAR_NAME context variable, a JSON array string with one element per blob, in the same
+     * order. Each element is either null (do nothing for this file) or a JSON object with the same "docType" and
+     * "properties" fields as the default chain. The documents are then created all at once.
+     * <br>
+     * If there is no batchChain, {@link #createOrUpdate(FileImporterContext)} is called for each context.
+     *
+     * @param contexts
+     * @return a list of the same size as {@code contexts}, with a null element for each file the chain did not handle
+     * @throws NuxeoException
+     * @since 2023.1
+     */
+    List<DocumentModel> createOrUpdateBatch(List<FileImporterContext> contexts) throws NuxeoException;
+
     /**
      * Returns a newly created Folderish document based on the given parameters. Will call the automation chain set in
      * the XML configuration, and this chain is in charge of creating the Folderish.
@@ -75,6 +120,11 @@ public interface FileImporterAutomationService {
      * If there is no callback chain or the chain returns null => the method returns null, and the caller *MUST*
      * create a Folderish, there is no default value when you override the default folderImporter.
      * <br>
+     * If a {@link FolderishFactory} is set in the XML configuration, it is used instead of the chain.
+     * <br>
+     * If {@code overwrite} is true and the parent already has a Folderish child with this title (or name), it is
+     * returned and the chain is not called.
+     * <br>
      * <b>Important</b>: The method assumes current user can access the parent container (path)
      * 
      * @param session
@@ -88,4 +138,148 @@ public interface FileImporterAutomationService {
     DocumentModel createFolderish(CoreSession session, String fullname, String path, boolean overwrite,
             TypeManager typeManager);
 
+    /**
+     * Returns the id of the callback (chain, or class of the {@link FolderishFactory}) creating the Folderish in the
+     * parent, null if there is none. The FolderImporter of the plugin reports its fallbacks under it.
+     *
+     * @since 2023.1
+     */
+    String getFolderCallbackId(String parentPath, String parentType);
+
+    /**
+     * Creates a whole tree of Folderish at once, typically when a folder tree is dropped.
+     * <br>
+     * The folderHierarchyChain set in the XML configuration is called once for the whole tree: it receives the parent
+     * container as input and the relative paths of all the folders as the {@code folder_paths} parameter. It returns,
+     * in the CALLBACK_FILEIMPORTER_CTX_VAR_NAME context variable, a JSON object string (or a Map) with the type of
+     * each folder, by relative path. The Folderish are then created level by level, each level at once.
+     * <br>
+     * A folder with no type is not created, and neither are its sub folders: the caller creates them (with
+     * {@link #createFolderish(CoreSession, String, String, boolean, TypeManager)} or the FileManager).
+     * <br>
+     * If a {@link FolderishFactory} is set in the XML configuration, its
+     * {@link FolderishFactory#getFolderishTypes(CoreSession, DocumentModel, List)} is used instead of the chain.
+     * <br>
+     * If {@code overwrite} is true, an existing Folderish child with the same title (or name) is reused.
+     *
+     * @param session
+     * @param path the path of the container
+     * @param relativePaths the paths of the folders, relative to the container, like "a", "a/b". The parent of a folder
+     *            does not have to be before it in the list
+     * @param overwrite
+     * @return a list of the same size as {@code relativePaths}, with a null element for each folder not created, or
+     *         null if there is no hierarchy callback (=> the caller creates the folders one by one)
+     * @since 2023.1
+     */
+    List<DocumentModel> createFolderishHierarchy(CoreSession session, String path, List<String> relativePaths,
+            boolean overwrite);
+
+    /**
+     * Asynchronous version of {@link #createOrUpdate(FileImporterContext)}: returns at once, the file is imported by
+     * the {@link AsyncImporter} in a new session (same repository and user as the session of the context) and a new
+     * transaction.
+     * <br>
+     * The future returns the reference of the document once the transaction is committed, or null if the callback
+     * declined the import (no FileManager fallback). It fails at once if too many imports are pending (see
+     * {@code <asyncImport>} in the XML configuration).
+     * <br>
+     * <b>Important</b>: The parent container must be committed, and the blob must stay readable until the future
+     * completes (a temporary file of a request may be deleted when the request ends).
+     *
+     * @since 2023.1
+     */
+    CompletableFuture<DocumentRef> createOrUpdateAsync(FileImporterContext context);
+
+    /**
+     * Asynchronous version of {@link #createFolderish(CoreSession, String, String, boolean, TypeManager)}, same
+     * behavior as {@link #createOrUpdateAsync(FileImporterContext)}. The future returns null if the callback did not
+     * create a Folderish: the caller must then create it.
+     *
+     * @since 2023.1
+     */
+    CompletableFuture<DocumentRef> createFolderishAsync(CoreSession session, String fullname, String path,
+            boolean overwrite);
+
+    /**
+     * Returns the cache of the document prototypes, shared by the rules with {@code documentPrototypes}.
+     *
+     * @since 2023.1
+     */
+    DocumentPrototypes getDocumentPrototypes();
+
+    /**
+     * Returns the pipeline storing the blobs while the callback decides, shared by the rules with
+     * {@code pipelinedBlobWrite}.
+     *
+     * @since 2023.1
+     */
+    BlobWritePipeline getBlobWritePipeline();
+
+    /**
+     * Returns the recorder of the imports, disabled unless {@code <recorder enabled="true">} is contributed.
+     *
+     * @since 2023.1
+     */
+    ImportRecorder getRecorder();
+
+    /**
+     * Returns the executor of the asynchronous imports, so its pending/rejected imports can be checked to size it.
+     *
+     * @since 2023.1
+     */
+    AsyncImporter getAsyncImporter();
+
+    /**
+     * Returns the cache of the FileImporter callback decisions, so its hits/misses/evictions can be checked to size it.
+     * Returns null if the cache is not enabled in the XML configuration.
+     *
+     * @return the decision cache or null
+     * @since 2023.1
+     */
+    ImportDecisionCache getDecisionCache();
+
+    /**
+     * Returns the cache of the FileImporter callback decisions of a rule (a configuration with an id), or null if the
+     * rule does not exist or does not enable the cache. {@link #getDecisionCache()} is the cache of the rule with no
+     * id.
+     *
+     * @param ruleId the id of the configuration
+     * @return the decision cache or null
+     * @since 2023.1
+     */
+    ImportDecisionCache getDecisionCache(String ruleId);
+
+    /**
+     * Returns the transaction-scoped cache of the parent documents, shared by the file and folder importers.
+     *
+     * @return the cache
+     * @since 2023.1
+     */
+    ParentDocumentCache getParentDocumentCache();
+
+    /**
+     * Returns the transaction-scoped index of the children of the parents, by digest and by name, used to update
+     * existing documents and to reuse existing Folderish.
+     *
+     * @return the index
+     * @since 2023.1
+     */
+    ChildDocumentIndex getChildDocumentIndex();
+
+    /**
+     * Returns the metrics of the importers, also published in the Nuxeo metrics registry.
+     *
+     * @return the metrics
+     * @since 2023.1
+     */
+    ImportMetrics getMetrics();
+
+    /**
+     * Returns the tracer of the imports: the slow imports and the aggregate statistics.
+     *
+     * @return the tracer
+     * @since 2023.1
+     */
+    ImportTracer getTracer();
+
 }
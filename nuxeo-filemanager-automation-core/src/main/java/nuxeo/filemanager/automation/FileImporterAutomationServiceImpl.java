@@ -19,32 +19,58 @@
 package nuxeo.filemanager.automation;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.nuxeo.ecm.automation.AutomationService;
 import org.nuxeo.ecm.automation.OperationContext;
 import org.nuxeo.ecm.automation.OperationException;
+import org.nuxeo.ecm.automation.core.util.BlobList;
 import org.nuxeo.ecm.automation.core.util.DocumentHelper;
-import org.nuxeo.ecm.automation.core.util.Properties;
+import org.nuxeo.ecm.automation.core.util.StringList;
 import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CoreInstance;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentRef;
 import org.nuxeo.ecm.core.api.NuxeoException;
-import org.nuxeo.ecm.core.api.PathRef;
+import org.nuxeo.ecm.core.api.VersioningOption;
+import org.nuxeo.ecm.core.api.pathsegment.PathSegmentService;
+import org.nuxeo.ecm.core.api.repository.RepositoryManager;
+import org.nuxeo.ecm.core.api.versioning.VersioningService;
 import org.nuxeo.ecm.platform.filemanager.api.FileImporterContext;
 import org.nuxeo.ecm.platform.filemanager.utils.FileManagerUtils;
 import org.nuxeo.ecm.platform.types.TypeManager;
+import org.nuxeo.runtime.RuntimeMessage.Level;
 import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.model.ComponentContext;
 import org.nuxeo.runtime.model.ComponentInstance;
 import org.nuxeo.runtime.model.DefaultComponent;
+import org.nuxeo.runtime.transaction.TransactionHelper;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import nuxeo.filemanager.automation.ChainGuard.TrippedException;
+import nuxeo.filemanager.automation.ImportMetrics.Outcome;
+import nuxeo.filemanager.automation.ImportMetrics.Phase;
 
 public class FileImporterAutomationServiceImpl extends DefaultComponent implements FileImporterAutomationService {
 
@@ -52,32 +78,274 @@ public class FileImporterAutomationServiceImpl extends DefaultComponent implemen
 
     public static final String EXT_POINT = "configuration";
 
-    protected FileImporterAutomationDescriptor descriptor;
+    // The registered contributions, in registration order. Guarded by "this", only used to build the snapshots
+    protected final List<FileImporterAutomationDescriptor> contributions = new ArrayList<>();
+
+    // Read once per import: the import threads never lock
+    protected volatile ImportConfiguration configuration = ImportConfiguration.EMPTY;
+
+    protected final ParentDocumentCache parentDocumentCache = new ParentDocumentCache();
+
+    protected final ImportMetrics metrics = new ImportMetrics();
+
+    protected final ChildDocumentIndex childDocumentIndex = new ChildDocumentIndex();
+
+    protected final EnrichmentBatcher enrichmentBatcher = new EnrichmentBatcher();
+
+    protected final ListenerReplayBatcher listenerReplayBatcher = new ListenerReplayBatcher();
+
+    protected final ImportTracer tracer = new ImportTracer();
+
+    protected final List<TracingDescriptor> tracingContributions = new ArrayList<>();
+
+    protected final AsyncImporter asyncImporter = new AsyncImporter();
+
+    protected final DocumentPrototypes documentPrototypes = new DocumentPrototypes();
+
+    protected final BlobWritePipeline blobWritePipeline = new BlobWritePipeline();
+
+    protected final ImportRecorder recorder = new ImportRecorder();
+
+    protected final List<RecorderDescriptor> recorderContributions = new ArrayList<>();
+
+    protected final List<AsyncImportDescriptor> asyncImportContributions = new ArrayList<>();
+
+    protected final List<BlobWritePipelineDescriptor> blobWritePipelineContributions = new ArrayList<>();
 
     // Avoid flooding the log with WARNS if no callback chains are provided
     // Example: user provided a folderImporter callback, but no filemanager callback
     // => Warning will be displayed for all and every file drag and dropped (unless
     // the dev. chaged the priority and the pattern)
-    boolean logNoConfigDone = false;
+    protected final AtomicBoolean logNoConfigDone = new AtomicBoolean();
 
-    boolean logNoFileManagerCBChainDone = false;
+    protected final AtomicBoolean logNoFileManagerCBChainDone = new AtomicBoolean();
 
-    boolean logNoFolderManagerCBChainDone = false;
+    protected final AtomicBoolean logNoFolderManagerCBChainDone = new AtomicBoolean();
 
+    @Override
+    public synchronized void registerContribution(Object contribution, String extensionPoint,
+            ComponentInstance contributor) {
+        if (!EXT_POINT.equals(extensionPoint)) {
+            return;
+        }
+        if (contribution instanceof TracingDescriptor) {
+            tracingContributions.add((TracingDescriptor) contribution);
+            updateTracing();
+        } else if (contribution instanceof AsyncImportDescriptor) {
+            asyncImportContributions.add((AsyncImportDescriptor) contribution);
+            updateAsyncImport();
+        } else if (contribution instanceof BlobWritePipelineDescriptor) {
+            blobWritePipelineContributions.add((BlobWritePipelineDescriptor) contribution);
+            updateBlobWritePipeline();
+        } else if (contribution instanceof RecorderDescriptor) {
+            recorderContributions.add((RecorderDescriptor) contribution);
+            updateRecorder();
+        } else {
+            FileImporterAutomationDescriptor descriptor = (FileImporterAutomationDescriptor) contribution;
+            contributions.add(descriptor);
+            try {
+                updateConfiguration();
+            } catch (RuntimeException e) {
+                // An invalid contribution (chainInput, versioning, class, ...) must not break the previous ones
+                contributions.removeIf(c -> c == descriptor);
+                updateConfiguration();
+                throw e;
+            }
+        }
+    }
 
     @Override
-    public void registerContribution(Object contribution, String extensionPoint, ComponentInstance contributor) {
-        if (EXT_POINT.equals(extensionPoint)) {
-            descriptor = (FileImporterAutomationDescriptor) contribution;
+    public synchronized void unregisterContribution(Object contribution, String extensionPoint,
+            ComponentInstance contributor) {
+        if (!EXT_POINT.equals(extensionPoint)) {
+            return;
+        }
+        if (contribution instanceof TracingDescriptor) {
+            tracingContributions.removeIf(c -> c == contribution);
+            updateTracing();
+        } else if (contribution instanceof AsyncImportDescriptor) {
+            asyncImportContributions.removeIf(c -> c == contribution);
+            updateAsyncImport();
+        } else if (contribution instanceof BlobWritePipelineDescriptor) {
+            blobWritePipelineContributions.removeIf(c -> c == contribution);
+            updateBlobWritePipeline();
+        } else if (contribution instanceof RecorderDescriptor) {
+            recorderContributions.removeIf(c -> c == contribution);
+            updateRecorder();
+        } else {
+            // By identity: a contribution overridden by another one with the same id is back when the other one is
+            // removed
+            contributions.removeIf(c -> c == contribution);
+            updateConfiguration();
         }
     }
 
-    protected boolean hasConfiguration() {
+    /**
+     * Builds a new snapshot from the contributions and publishes it. Imports running keep the snapshot they started
+     * with.
+     */
+    protected void updateConfiguration() {
+        configuration = new ImportConfiguration(new ArrayList<>(contributions));
+        documentPrototypes.clear();
+        logNoConfigDone.set(false);
+        logNoFileManagerCBChainDone.set(false);
+        logNoFolderManagerCBChainDone.set(false);
+    }
+
+    protected void updateTracing() {
+        tracer.configure(tracingContributions.isEmpty() ? new TracingDescriptor()
+                : tracingContributions.get(tracingContributions.size() - 1));
+    }
+
+    protected void updateAsyncImport() {
+        asyncImporter.configure(asyncImportContributions.isEmpty() ? new AsyncImportDescriptor()
+                : asyncImportContributions.get(asyncImportContributions.size() - 1));
+    }
+
+    protected void updateBlobWritePipeline() {
+        blobWritePipeline.configure(blobWritePipelineContributions.isEmpty() ? new BlobWritePipelineDescriptor()
+                : blobWritePipelineContributions.get(blobWritePipelineContributions.size() - 1));
+    }
+
+    protected void updateRecorder() {
+        recorder.configure(recorderContributions.isEmpty() ? new RecorderDescriptor()
+                : recorderContributions.get(recorderContributions.size() - 1));
+    }
+
+    @Override
+    public int getApplicationStartedOrder() {
+        // After the automation and automation scripting components, so the chains are registered
+        return 10_000;
+    }
+
+    @Override
+    public void start(ComponentContext context) {
+        // The executors and the recorder are shut down by stop()
+        updateAsyncImport();
+        blobWritePipeline.start();
+        updateRecorder();
+        ImportConfiguration config = configuration;
+        // The schemas or the types may have been reloaded
+        documentPrototypes.clear();
+        validateChains(config);
+        warmUp(config);
+    }
+
+    @Override
+    public void stop(ComponentContext context) throws InterruptedException {
+        asyncImporter.shutdown();
+        blobWritePipeline.shutdown();
+        recorder.shutdown();
+    }
+
+    /**
+     * Checks the chains exist, so a misspelt chain id is reported at startup and not when a user drops a file.
+     * <br>
+     * The chains are not resolved and kept on the rules: AutomationService only runs a chain by id, and already caches
+     * its compiled form. The cost of the first call (compiling the scripts) is paid at startup with {@code warmUp}.
+     */
+    protected void validateChains(ImportConfiguration config) {
+        AutomationService as = Framework.getService(AutomationService.class);
+        for (ImportRule rule : config.getRoutingTable().getRules()) {
+            for (String chainId : rule.getCalledChainIds()) {
+                if (!as.hasOperation(chainId)) {
+                    String message = "FileImporterAutomation configuration <" + rule.getId() + ">: unknown chain <"
+                            + chainId + ">";
+                    log.error(message);
+                    addRuntimeMessage(Level.ERROR, message);
+                }
+            }
+        }
+    }
 
-        if (descriptor == null) {
-            if (!logNoConfigDone) {
+    /**
+     * Runs the chains of the rules with {@code warmUp} once, so the first user import does not pay for the lazy
+     * compilation of the chains and of the scripts. Everything runs in a transaction that is rolled back.
+     */
+    protected void warmUp(ImportConfiguration config) {
+
+        List<ImportRule> rules = new ArrayList<>();
+        for (ImportRule rule : config.getRoutingTable().getRules()) {
+            if (rule.getDescriptor().isWarmUp() && !rule.getCalledChainIds().isEmpty()) {
+                rules.add(rule);
+            }
+        }
+        if (rules.isEmpty()) {
+            return;
+        }
+        if (TransactionHelper.isTransactionActive()) {
+            // Rolling back would also roll back the caller's work
+            log.warn("Cannot warm up the FileImporterAutomation chains in an existing transaction");
+            return;
+        }
+
+        String repositoryName = Framework.getService(RepositoryManager.class).getDefaultRepositoryName();
+        TransactionHelper.runInTransaction(() -> CoreInstance.doPrivileged(repositoryName, (CoreSession session) -> {
+            try {
+                DocumentModel folder = session.createDocumentModel("/", "filemanager-automation-warm-up", "Folder");
+                folder = session.createDocument(folder);
+                for (ImportRule rule : rules) {
+                    warmUp(session, rule, folder);
+                }
+            } finally {
+                TransactionHelper.setTransactionRollbackOnly();
+            }
+        }));
+    }
+
+    protected void warmUp(CoreSession session, ImportRule rule, DocumentModel folder) {
+
+        AutomationService as = Framework.getService(AutomationService.class);
+        Map<String, Object> params = new HashMap<>();
+        params.put(CALLBACK_PARAM_PARENT_PATH, folder.getPathAsString());
+        params.put(CALLBACK_PARAM_PARENT_TYPE, folder.getType());
+        long start = System.currentTimeMillis();
+        try {
+            if (rule.getFileImportDecider() == null && rule.getFileChainId() != null) {
+                OperationContext octx = new OperationContext(session);
+                runFileChain(rule, octx, Blobs.createBlob("warm-up", "text/plain", null, "warm-up.txt"),
+                        "warm-up.txt", folder);
+                ImportDecisionParser.parse(octx.get(CALLBACK_FILEIMPORTER_CTX_VAR_NAME));
+            }
+            if (rule.getFileImportDecider() == null && rule.getBatchChainId() != null) {
+                BlobList blobs = new BlobList();
+                blobs.add(Blobs.createBlob("warm-up", "text/plain", null, "warm-up.txt"));
+                OperationContext octx = new OperationContext(session);
+                octx.setInput(blobs);
+                as.run(octx, rule.getBatchChainId(), params);
+                ImportDecisionParser.parseList(octx.get(CALLBACK_FILEIMPORTER_CTX_VAR_NAME));
+            }
+            if (rule.getFolderishFactory() == null && rule.getFolderChainId() != null) {
+                OperationContext octx = new OperationContext(session);
+                octx.setInput(folder);
+                Map<String, Object> folderParams = new HashMap<>();
+                folderParams.put(CALLBACK_PARAM_FOLDERISH_TITLE, "warm-up");
+                as.run(octx, rule.getFolderChainId(), folderParams);
+            }
+            if (rule.getFolderishFactory() == null && rule.getFolderHierarchyChainId() != null) {
+                getFolderishTypes(rule, session, folder, List.of("warm-up"));
+            }
+            log.debug("Warm-up of FileImporterAutomation configuration <{}> done in {}ms", rule.getId(),
+                    System.currentTimeMillis() - start);
+        } catch (OperationException | IOException | NuxeoException e) {
+            // Chains are free to fail on the synthetic data, they are compiled anyway
+            log.warn("Warm-up of FileImporterAutomation configuration <{}> failed: {}", rule.getId(),
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the current configuration snapshot.
+     */
+    public ImportConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    protected boolean hasConfiguration(ImportConfiguration config) {
+
+        if (config.isEmpty()) {
+            if (logNoConfigDone.compareAndSet(false, true)) {
                 log.warn("No configuration contributed => not doing anything, letting Nuxeo decides");
-                logNoConfigDone = true;
             }
             return false;
         }
@@ -85,18 +353,16 @@ public class FileImporterAutomationServiceImpl extends DefaultComponent implemen
         return true;
     }
 
-    protected boolean hasAFileImporterChain() {
+    protected boolean hasAFileImporterChain(ImportConfiguration config) {
 
-        if (!hasConfiguration()) {
+        if (!hasConfiguration(config)) {
             return false;
         }
 
-        String chainId = descriptor.getChainId();
-        if (StringUtils.isBlank(chainId)) {
-            if (!logNoFileManagerCBChainDone) {
+        if (!config.getRoutingTable().hasFileRules()) {
+            if (logNoFileManagerCBChainDone.compareAndSet(false, true)) {
                 log.warn(
                         "No chain ID provided for the File Importer => not doing anything when importing files (Nuxeo will call the next file importer plugin)");
-                logNoFileManagerCBChainDone = true;
             }
             return false;
         }
@@ -104,17 +370,15 @@ public class FileImporterAutomationServiceImpl extends DefaultComponent implemen
         return true;
     }
 
-    protected boolean hasAFolderImporterChain() {
+    protected boolean hasAFolderImporterChain(ImportConfiguration config) {
 
-        if (!hasConfiguration()) {
+        if (!hasConfiguration(config)) {
             return false;
         }
 
-        String folderChainId = descriptor.getFolderImporterChain();
-        if (StringUtils.isBlank(folderChainId)) {
-            if (!logNoFolderManagerCBChainDone) {
+        if (!config.getRoutingTable().hasFolderRules()) {
+            if (logNoFolderManagerCBChainDone.compareAndSet(false, true)) {
                 log.warn("No chain ID provided for Folder Importer => default behavior will apply.");
-                logNoFolderManagerCBChainDone = true;
             }
             return false;
         }
@@ -124,104 +388,1085 @@ public class FileImporterAutomationServiceImpl extends DefaultComponent implemen
 
     @Override
     public DocumentModel createOrUpdate(FileImporterContext context) throws NuxeoException {
+        Blob blob = context.getBlob();
+        String fileName = StringUtils.defaultIfBlank(context.getFileName(), blob.getFilename());
+        ImportTrace trace = tracer.begin(ImportTrace.FILE, fileName, context.getParentPath(), blob.getLength());
+        long start = System.nanoTime();
+        DocumentModel doc = null;
+        boolean failed = true;
+        try {
+            doc = importFile(context);
+            failed = false;
+            return doc;
+        } finally {
+            tracer.end(trace);
+            record(ImportTrace.FILE, context.getSession(), fileName, blob.getMimeType(), blob.getLength(),
+                    context.getParentPath(), doc, failed, start);
+        }
+    }
 
-        if (!hasAFileImporterChain()) {
-            return null;
+    /**
+     * Records the import if the {@link ImportRecorder} is enabled.
+     */
+    protected void record(String kind, CoreSession session, String name, String mimeType, long length,
+            String parentPath, DocumentModel doc, boolean failed, long start) {
+        if (!recorder.isEnabled()) {
+            return;
         }
+        long durationMicros = (System.nanoTime() - start) / 1000;
+        String parentType = null;
+        try {
+            // Already in the cache of the transaction
+            parentType = parentDocumentCache.getDocument(session, parentPath).getType();
+        } catch (RuntimeException e) {
+            log.debug("No parent type to record for {}", parentPath, e);
+        }
+        String outcome = failed ? ImportRecord.OUTCOME_FAILED
+                : doc == null ? ImportRecord.OUTCOME_DECLINED : ImportRecord.OUTCOME_IMPORTED;
+        recorder.record(new ImportRecord(System.currentTimeMillis(), kind, name, mimeType, length, parentPath,
+                parentType, doc == null ? null : doc.getType(), outcome, durationMicros));
+    }
 
-        String chainId = descriptor.getChainId();
-        DocumentModel doc = null;
+    @Override
+    public CompletableFuture<DocumentRef> createOrUpdateAsync(FileImporterContext context) {
+        CoreSession callerSession = context.getSession();
+        return asyncImporter.submit(callerSession.getRepositoryName(), callerSession.getPrincipal(),
+                session -> createOrUpdate(withSession(context, session)));
+    }
+
+    /**
+     * Returns a copy of the context using another session.
+     */
+    protected static FileImporterContext withSession(FileImporterContext context, CoreSession session) {
+        return FileImporterContext.builder(session, context.getBlob(), context.getParentPath())
+                                  .overwrite(context.isOverwrite())
+                                  .fileName(context.getFileName())
+                                  .mimeTypeCheck(context.isMimeTypeCheck())
+                                  .excludeOneToMany(context.isExcludeOneToMany())
+                                  .persistDocument(context.isPersistDocument())
+                                  .build();
+    }
+
+    protected DocumentModel importFile(FileImporterContext context) {
+
+        ImportConfiguration config = configuration;
+        if (!hasAFileImporterChain(config)) {
+            return null;
+        }
+        ImportRoutingTable routingTable = config.getRoutingTable();
 
-        PathRef parentRef = new PathRef(context.getParentPath());
-        DocumentModel parentDoc = context.getSession().getDocument(parentRef);
         Blob blob = context.getBlob();
+        String fileName = StringUtils.defaultIfBlank(context.getFileName(), blob.getFilename());
+
+        // Pre-filters: Cheap checks first, before loading the parent
+        if (!routingTable.mayAcceptFile(context.getParentPath(), blob.getMimeType(), fileName, blob.getLength())) {
+            metrics.count(Outcome.DECLINED, fileCallbackId(routingTable, context.getParentPath()));
+            return null;
+        }
+
         CoreSession session = context.getSession();
+        long start = System.nanoTime();
+        DocumentModel parentDoc;
+        try {
+            parentDoc = parentDocumentCache.getDocument(session, context.getParentPath());
+        } catch (RuntimeException e) {
+            metrics.count(Outcome.FAILED, fileCallbackId(routingTable, context.getParentPath()));
+            throw e;
+        }
+        metrics.time(Phase.PARENT_LOOKUP, null, start);
+
+        ImportRule rule = routingTable.selectFileRule(parentDoc.getPathAsString(), parentDoc.getType(),
+                blob.getMimeType(), fileName, blob.getLength());
+        if (rule == null) {
+            metrics.count(Outcome.DECLINED, fileCallbackId(routingTable, parentDoc.getPathAsString()));
+            return null;
+        }
+
+        return createOrUpdate(rule, context, parentDoc);
+    }
+
+    /**
+     * Imports the file with the rule, counting the failures (other outcomes are counted by
+     * {@link #doCreateOrUpdate(ImportRule, FileImporterContext, DocumentModel)}).
+     */
+    protected DocumentModel createOrUpdate(ImportRule rule, FileImporterContext context, DocumentModel parentDoc) {
+        try {
+            return doCreateOrUpdate(rule, context, parentDoc);
+        } catch (RuntimeException e) {
+            metrics.count(Outcome.FAILED, rule.getFileCallbackId());
+            throw e;
+        }
+    }
+
+    protected DocumentModel doCreateOrUpdate(ImportRule rule, FileImporterContext context, DocumentModel parentDoc) {
+
+        String chainId = rule.getFileCallbackId();
+        CoreSession session = context.getSession();
+        Blob blob = context.getBlob();
+        String fileName = StringUtils.defaultIfBlank(context.getFileName(), blob.getFilename());
+
+        // Update mode: the same file, with the same name, is already there => nothing to do, not even calling the chain
+        if (rule.isUpdateByDigest()) {
+            DocumentRef existing = childDocumentIndex.findByDigest(session, parentDoc,
+                    digest(blob, rule.getDigestAlgorithm()), fileName);
+            if (existing != null) {
+                metrics.count(Outcome.UNCHANGED, chainId);
+                return session.getDocument(existing);
+            }
+        }
+
+        ImportDecision decision;
+        ImportDecisionCache decisionCache = rule.getDecisionCache();
+        FileImportDecider fileImportDecider = rule.getFileImportDecider();
+        String cacheKey = null;
+        ImportDecisionCache.Entry cached = null;
+        if (decisionCache != null && fileImportDecider == null && !rule.isDeferredCallback()) {
+            cacheKey = ImportDecisionCache.key(blob.getMimeType(), FilenameUtils.getExtension(fileName),
+                    parentDoc.getType());
+            cached = decisionCache.get(cacheKey);
+        }
+
+        // Pipelined mode: the binary is stored while the callback decides
+        CompletableFuture<Blob> storedBlob = null;
+        if (cached == null && rule.isPipelinedBlobWrite()
+                && BlobWritePipeline.accepts(blob, rule.getPipelinedBlobWriteMinSize())) {
+            storedBlob = blobWritePipeline.write(session.getRepositoryName(), rule.getPipelinedBlobWriteProvider(),
+                    blob);
+        }
+
+        long start = System.nanoTime();
+        if (rule.isDeferredCallback()) {
+            // Split mode: the chain is called by the enrichment work
+            decision = new ImportDecision(rule.getEnrichmentDocType(), null, null);
+        } else if (fileImportDecider != null) {
+            try {
+                decision = rule.getGuard().call(() -> fileImportDecider.decide(context, parentDoc));
+            } catch (TrippedException e) {
+                cancel(storedBlob);
+                return tripped(e, chainId);
+            } catch (OperationException | IOException e) {
+                // Not thrown by a decider
+                throw new NuxeoException(e);
+            }
+            metrics.time(Phase.CHAIN, chainId, start);
+        } else if (cached != null) {
+            decision = cached.getDecision();
+        } else {
+            OperationContext octx = new OperationContext(session);
+            Blob input = blob;
+            try {
+                blob = rule.getGuard().call(() -> runFileChain(rule, octx, input, fileName, parentDoc));
+                start = metrics.time(Phase.CHAIN, chainId, start);
+                decision = ImportDecisionParser.parse(octx.get(CALLBACK_FILEIMPORTER_CTX_VAR_NAME));
+                metrics.time(Phase.PARSE, chainId, start);
+            } catch (TrippedException e) {
+                cancel(storedBlob);
+                return tripped(e, chainId);
+            } catch (OperationException | IOException e) {
+                throw new NuxeoException("Failed to run the FileManager callback chain <" + chainId + ">", e);
+            }
+
+            if (decisionCache != null) {
+                decisionCache.put(cacheKey, decision, fileName);
+            }
+        }
+
+        if (decision == null) {
+            cancel(storedBlob);
+            metrics.count(Outcome.DECLINED, chainId);
+            return null;
+        }
+
+        // Unless the chain returned another blob
+        if (storedBlob != null && blob == context.getBlob()) {
+            start = System.nanoTime();
+            blob = blobWritePipeline.await(storedBlob, blob, rule.getPipelinedBlobWriteTimeout());
+            metrics.time(Phase.BLOB_WRITE, chainId, start);
+        }
+
+        // Update mode: same file name => new content for the existing document, if it has the expected type
+        if (rule.isUpdateByName() && context.isOverwrite()) {
+            DocumentModel doc = updateByName(rule, session, parentDoc, fileName, blob, decision, chainId);
+            if (doc != null) {
+                metrics.count(Outcome.UPDATED, chainId);
+                return doc;
+            }
+        }
+
+        DocumentModel doc = buildDocumentModel(rule, session, parentDoc, blob, context.getFileName(),
+                immediateDecision(rule, decision), chainId);
+        disableListeners(rule, doc);
+        start = System.nanoTime();
+        doc = session.createDocument(doc);
+        metrics.time(Phase.CREATE, chainId, start);
+        enrichLater(rule, session, doc, decision);
+        replayListenersLater(rule, session, doc, true);
+        childDocumentIndex.add(session, parentDoc, doc);
+        metrics.count(Outcome.CREATED, chainId);
+        return doc;
+    }
+
+    /**
+     * Stops a blob write not started yet. A blob being written or already written is left to the garbage collection of
+     * the binary store.
+     */
+    /**
+     * Returns the callback the imports in the parent path are reported under before their rule is known, see
+     * {@link ImportRoutingTable#selectPathRule(String, Predicate)}.
+     */
+    protected static String pathCallbackId(ImportRoutingTable routingTable, String parentPath,
+            Predicate<ImportRule> predicate, Function<ImportRule, String> callbackId) {
+        ImportRule rule = routingTable.selectPathRule(parentPath, predicate);
+        return rule == null ? null : callbackId.apply(rule);
+    }
+
+    protected static String fileCallbackId(ImportRoutingTable routingTable, String parentPath) {
+        return pathCallbackId(routingTable, parentPath, ImportRule::hasFileCallback, ImportRule::getFileCallbackId);
+    }
+
+    /**
+     * Returns the folder callback of the rule, or the one of the path if no rule was selected.
+     */
+    protected static String folderCallbackId(ImportRoutingTable routingTable, ImportRule rule, String parentPath) {
+        if (rule != null) {
+            return rule.getFolderCallbackId();
+        }
+        return pathCallbackId(routingTable, parentPath, ImportRule::hasFolderCallback,
+                ImportRule::getFolderCallbackId);
+    }
+
+    protected static void cancel(CompletableFuture<Blob> storedBlob) {
+        if (storedBlob != null) {
+            storedBlob.cancel(false);
+        }
+    }
+
+    /**
+     * Counts and logs a callback call rejected or timed out by the {@link ChainGuard}, and returns null: the import
+     * falls back as if the callback declined it.
+     */
+    protected DocumentModel tripped(TrippedException e, String callbackId) {
+        log.warn(e.getMessage());
+        metrics.count(e.getOutcome(), callbackId);
+        return null;
+    }
+
+    /**
+     * Returns the part of the decision applied when the document is created: all of it, or, in split mode, only the
+     * type and the title. The rest is applied later, see
+     * {@link #enrichLater(ImportRule, CoreSession, DocumentModel, ImportDecision)}
+     */
+    protected ImportDecision immediateDecision(ImportRule rule, ImportDecision decision) {
+        if (!rule.isEnrichment()) {
+            return decision;
+        }
+        return new ImportDecision(decision.getDocType(), decision.getTitle(), null);
+    }
+
+    /**
+     * In split mode, schedules the enrichment of the document once the transaction is committed, as the user of the
+     * session.
+     */
+    protected void enrichLater(ImportRule rule, CoreSession session, DocumentModel doc, ImportDecision decision) {
+        if (rule.isEnrichment() && (rule.isDeferredCallback() || decision.getProperties() != null
+                || decision.getValues() != null || rule.getEnrichmentChainId() != null)) {
+            enrichmentBatcher.add(rule, session, doc, decision);
+        }
+    }
+
+    /**
+     * In bulk import mode, sets the context data flags disabling listeners on the document, before it is created or
+     * saved.
+     */
+    protected void disableListeners(ImportRule rule, DocumentModel doc) {
+        for (String flag : rule.getDisabledListenerFlags()) {
+            doc.putContextData(flag, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * In bulk import mode, fires again the events of the disabled listeners, fires the replay events and calls the
+     * replay chain on the document once the transaction is committed.
+     *
+     * @param created true if the document was created, false if it was updated
+     */
+    protected void replayListenersLater(ImportRule rule, CoreSession session, DocumentModel doc, boolean created) {
+        if (rule.hasListenerReplay()) {
+            listenerReplayBatcher.add(rule, session, doc, created);
+        }
+    }
+
+    protected static String getFileName(FileImporterContext context) {
+        return StringUtils.defaultIfBlank(context.getFileName(), context.getBlob().getFilename());
+    }
+
+    protected DocumentModel updateByName(ImportRule rule, FileImporterContext context, DocumentModel parentDoc,
+            ImportDecision decision, String chainId) {
+        return updateByName(rule, context.getSession(), parentDoc, getFileName(context), context.getBlob(), decision,
+                chainId);
+    }
+
+    /**
+     * Updates the child of the parent with this file name, title or name, if it has the type decided by the callback.
+     *
+     * @return the updated document, or null if there is none
+     */
+    protected DocumentModel updateByName(ImportRule rule, CoreSession session, DocumentModel parentDoc,
+            String fileName, Blob blob, ImportDecision decision, String chainId) {
+        DocumentRef existingRef = childDocumentIndex.findByName(session, parentDoc, fileName);
+        if (existingRef == null) {
+            return null;
+        }
+        DocumentModel existing = session.getDocument(existingRef);
+        if (!existing.getType().equals(decision.getDocType())) {
+            return null;
+        }
+        DocumentModel doc = updateDocument(session, existing, blob, immediateDecision(rule, decision), rule, chainId);
+        enrichLater(rule, session, doc, decision);
+        replayListenersLater(rule, session, doc, false);
+        childDocumentIndex.add(session, parentDoc, doc);
+        return doc;
+    }
+
+    /**
+     * Sets the new blob and the properties decided by the callback on an existing document, and saves it, creating a
+     * version if the rule asks for it.
+     */
+    protected DocumentModel updateDocument(CoreSession session, DocumentModel doc, Blob blob,
+            ImportDecision decision, ImportRule rule, String chainId) {
+
+        long start = System.nanoTime();
+        doc.setPropertyValue("file:content", (Serializable) blob);
+        if (StringUtils.isNotBlank(decision.getTitle())) {
+            doc.setPropertyValue("dc:title", decision.getTitle());
+        }
+        applyProperties(rule, session, doc, decision, chainId);
+        if (rule.getVersioningOption() != VersioningOption.NONE) {
+            doc.putContextData(VersioningService.VERSIONING_OPTION, rule.getVersioningOption());
+        }
+        disableListeners(rule, doc);
+        metrics.time(Phase.PROPERTIES, chainId, start);
+
+        start = System.nanoTime();
+        doc = session.saveDocument(doc);
+        metrics.time(Phase.CREATE, chainId, start);
+        return doc;
+    }
+
+    /**
+     * Returns the digest of the blob, computing it only if the blob does not have one with the expected algorithm.
+     */
+    protected static String digest(Blob blob, String algorithm) {
+        if (blob.getDigest() != null && algorithm.equalsIgnoreCase(blob.getDigestAlgorithm())) {
+            return blob.getDigest();
+        }
+        try (InputStream in = blob.getStream()) {
+            return new DigestUtils(algorithm).digestAsHex(in);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new NuxeoException("Cannot compute the " + algorithm + " digest of " + blob.getFilename(), e);
+        }
+    }
+
+    /**
+     * Runs the FileImporter chain of the rule, returns the blob to import: the one returned by the chain, or the
+     * original blob with the metadata input.
+     */
+    protected Blob runFileChain(ImportRule rule, OperationContext octx, Blob blob, String fileName,
+            DocumentModel parentDoc) throws OperationException, IOException {
+        return runFileChain(rule.getFileChainId(), rule.isMetadataInput(), rule.getHeaderBytes(), octx, blob, fileName,
+                parentDoc);
+    }
+
+    /**
+     * Runs the FileImporter chain, with the blob or its metadata as input. Also used by the {@link EnrichmentWork}.
+     */
+    protected static Blob runFileChain(String chainId, boolean metadataInput, int headerBytes, OperationContext octx,
+            Blob blob, String fileName, DocumentModel parentDoc) throws OperationException, IOException {
 
         AutomationService as = Framework.getService(AutomationService.class);
-        OperationContext octx = new OperationContext(session);
-        octx.setInput(blob);
         Map<String, Object> params = new HashMap<>();
         params.put(CALLBACK_PARAM_PARENT_PATH, parentDoc.getPathAsString());
         params.put(CALLBACK_PARAM_PARENT_TYPE, parentDoc.getType());
 
+        if (!metadataInput) {
+            octx.setInput(blob);
+            return (Blob) as.run(octx, chainId, params);
+        }
+
+        // The chain never gets the blob, so nothing can read the whole stream or copy it
+        params.put(CALLBACK_PARAM_FILE_NAME, fileName);
+        params.put(CALLBACK_PARAM_MIME_TYPE, blob.getMimeType());
+        params.put(CALLBACK_PARAM_FILE_LENGTH, blob.getLength());
+        if (blob.getDigest() != null) {
+            params.put(CALLBACK_PARAM_DIGEST, blob.getDigest());
+        }
+        if (headerBytes > 0) {
+            octx.put(CALLBACK_HEADER_CTX_VAR_NAME, readHeader(blob, headerBytes));
+        }
+        as.run(octx, chainId, params);
+        return blob;
+    }
+
+    /**
+     * Sets the input of the batch chain: the list of blobs, or, with the metadata input, their metadata as lists of the
+     * parameters received by the FileImporter chain, in the same order ({@code digest} is empty when unknown).
+     */
+    protected void setBatchChainInput(ImportRule rule, OperationContext octx, Map<String, Object> params,
+            List<FileImporterContext> contexts) {
+
+        if (!rule.isMetadataInput()) {
+            BlobList blobs = new BlobList();
+            for (FileImporterContext context : contexts) {
+                blobs.add(context.getBlob());
+            }
+            octx.setInput(blobs);
+            return;
+        }
+
+        // The chain never gets the blobs, so nothing can read the whole streams or copy them
+        StringList fileNames = new StringList();
+        StringList mimeTypes = new StringList();
+        StringList fileLengths = new StringList();
+        StringList digests = new StringList();
+        List<ByteBuffer> headers = new ArrayList<>();
+        for (FileImporterContext context : contexts) {
+            Blob blob = context.getBlob();
+            fileNames.add(getFileName(context));
+            mimeTypes.add(blob.getMimeType());
+            fileLengths.add(String.valueOf(blob.getLength()));
+            digests.add(StringUtils.defaultString(blob.getDigest()));
+            if (rule.getHeaderBytes() > 0) {
+                try {
+                    headers.add(readHeader(blob, rule.getHeaderBytes()));
+                } catch (IOException e) {
+                    throw new NuxeoException("Cannot read the header of " + blob.getFilename(), e);
+                }
+            }
+        }
+        params.put(CALLBACK_PARAM_FILE_NAME, fileNames);
+        params.put(CALLBACK_PARAM_MIME_TYPE, mimeTypes);
+        params.put(CALLBACK_PARAM_FILE_LENGTH, fileLengths);
+        params.put(CALLBACK_PARAM_DIGEST, digests);
+        if (rule.getHeaderBytes() > 0) {
+            octx.put(CALLBACK_HEADER_CTX_VAR_NAME, headers);
+        }
+    }
+
+    /**
+     * Reads at most {@code size} bytes from the beginning of the blob.
+     */
+    protected static ByteBuffer readHeader(Blob blob, int size) throws IOException {
+        try (InputStream in = blob.getStream()) {
+            return ByteBuffer.wrap(in.readNBytes(size)).asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Builds (does not create) the document to import, based on the callback decision.
+     */
+    protected DocumentModel buildDocumentModel(ImportRule rule, CoreSession session, DocumentModel parentDoc,
+            Blob blob, String fileName, ImportDecision decision, String chainId) {
+
+        long start = System.nanoTime();
+        String title = StringUtils.defaultIfBlank(decision.getTitle(),
+                StringUtils.defaultIfBlank(fileName, blob.getFilename()));
+
+        DocumentModel doc = rule.isDocumentPrototypes()
+                ? documentPrototypes.newDocumentModel(session, parentDoc, title, decision.getDocType())
+                : session.createDocumentModel(parentDoc.getPathAsString(), title, decision.getDocType());
+        doc.setPropertyValue("dc:title", title);
+        doc.setPropertyValue("file:content", (Serializable) blob);
+        doc.putContextData(ChildDocumentIndex.INDEXED, Boolean.TRUE);
+        applyProperties(rule, session, doc, decision, chainId);
+        metrics.time(Phase.PROPERTIES, chainId, start);
+        return doc;
+    }
+
+    /**
+     * Sets the properties and the typed values of the decision on the document.
+     */
+    protected void applyProperties(ImportRule rule, CoreSession session, DocumentModel doc, ImportDecision decision,
+            String chainId) {
+        if (decision.getProperties() != null) {
+            try {
+                if (rule.isDocumentPrototypes()) {
+                    documentPrototypes.setProperties(session, doc, decision.getProperties());
+                } else {
+                    DocumentHelper.setProperties(session, doc, decision.getProperties());
+                }
+            } catch (IOException e) {
+                throw new NuxeoException("Failed to set the properties returned by the callback chain <" + chainId
+                        + ">", e);
+            }
+        }
+        if (decision.getValues() != null) {
+            for (Map.Entry<String, Serializable> value : decision.getValues().entrySet()) {
+                doc.setPropertyValue(value.getKey(), value.getValue());
+            }
+        }
+    }
+
+    @Override
+    public List<DocumentModel> createOrUpdateBatch(List<FileImporterContext> contexts) throws NuxeoException {
+        long size = 0;
+        for (FileImporterContext context : contexts) {
+            size += Math.max(context.getBlob().getLength(), 0);
+        }
+        ImportTrace trace = tracer.begin(ImportTrace.BATCH, contexts.size() + " files",
+                contexts.isEmpty() ? null : contexts.get(0).getParentPath(), size);
         try {
-            blob = (Blob) as.run(octx, chainId, params);
-            String resultStr = (String) octx.get(CALLBACK_FILEIMPORTER_CTX_VAR_NAME);
-            if (StringUtils.isBlank(resultStr)) {
-                return null;
+            return importBatch(contexts);
+        } finally {
+            tracer.end(trace);
+        }
+    }
+
+    protected List<DocumentModel> importBatch(List<FileImporterContext> contexts) {
+
+        List<DocumentModel> result = new ArrayList<>(Collections.nCopies(contexts.size(), (DocumentModel) null));
+        ImportConfiguration config = configuration;
+        if (contexts.isEmpty() || !hasAFileImporterChain(config)) {
+            return result;
+        }
+        ImportRoutingTable routingTable = config.getRoutingTable();
+
+        // The callback receives parent_path and parent_type, so the chain is called once per parent
+        Map<String, List<Integer>> indexesByParent = new LinkedHashMap<>();
+        for (int i = 0; i < contexts.size(); i++) {
+            FileImporterContext context = contexts.get(i);
+            Blob blob = context.getBlob();
+            String fileName = StringUtils.defaultIfBlank(context.getFileName(), blob.getFilename());
+            if (!routingTable.mayAcceptFile(context.getParentPath(), blob.getMimeType(), fileName,
+                    blob.getLength())) {
+                continue;
             }
+            indexesByParent.computeIfAbsent(context.getParentPath(), k -> new ArrayList<>()).add(i);
+        }
+
+        for (List<Integer> indexes : indexesByParent.values()) {
+            createOrUpdateBatch(routingTable, contexts, indexes, result);
+        }
+
+        return result;
+    }
 
-            // NOTICE: Using Jackson instead of default org.json.JSONObject because below,
-            // we use a converter to Nuxeo Properties, that expect a Jackson JSON
-            ObjectMapper objectMapper = new ObjectMapper();
-            JsonNode resultJson = objectMapper.readTree(resultStr);
+    /**
+     * Handles the files of the same parent: dispatches them to their rule, then calls each rule once.
+     */
+    protected void createOrUpdateBatch(ImportRoutingTable routingTable, List<FileImporterContext> contexts,
+            List<Integer> indexes, List<DocumentModel> result) {
 
-            JsonNode docTypeJson = resultJson.get(CALLBACK_RESULT_DOCTYPE);
-            if (docTypeJson == null) {
-                return null;
+        FileImporterContext first = contexts.get(indexes.get(0));
+        CoreSession session = first.getSession();
+        DocumentModel parentDoc = parentDocumentCache.getDocument(session, first.getParentPath());
+        String parentPath = parentDoc.getPathAsString();
+
+        Map<ImportRule, List<Integer>> indexesByRule = new LinkedHashMap<>();
+        for (int i : indexes) {
+            FileImporterContext context = contexts.get(i);
+            Blob blob = context.getBlob();
+            String fileName = StringUtils.defaultIfBlank(context.getFileName(), blob.getFilename());
+            ImportRule rule = routingTable.selectFileRule(parentPath, parentDoc.getType(), blob.getMimeType(),
+                    fileName, blob.getLength());
+            if (rule != null) {
+                indexesByRule.computeIfAbsent(rule, k -> new ArrayList<>()).add(i);
             }
-            String docType = docTypeJson.asText();
-            if (StringUtils.isBlank(docType)) {
-                return null;
+        }
+
+        for (Map.Entry<ImportRule, List<Integer>> entry : indexesByRule.entrySet()) {
+            ImportRule rule = entry.getKey();
+            if (rule.hasBatchCallback()) {
+                createOrUpdateBatch(rule, contexts, entry.getValue(), parentDoc, result);
+            } else {
+                // No batch chain => one call per file
+                for (int i : entry.getValue()) {
+                    result.set(i, createOrUpdate(rule, contexts.get(i), parentDoc));
+                }
             }
+        }
+    }
+
+    /**
+     * Handles the files of the same parent and rule: runs the batch chain once for all the files that are not in the
+     * decision cache, then creates all the documents at once.
+     */
+    protected void createOrUpdateBatch(ImportRule rule, List<FileImporterContext> contexts, List<Integer> indexes,
+            DocumentModel parentDoc, List<DocumentModel> result) {
+        try {
+            doCreateOrUpdateBatch(rule, contexts, indexes, parentDoc, result);
+        } catch (RuntimeException e) {
+            metrics.count(Outcome.FAILED, rule.getBatchCallbackId(), indexes.size());
+            throw e;
+        }
+    }
+
+    protected void doCreateOrUpdateBatch(ImportRule rule, List<FileImporterContext> contexts, List<Integer> indexes,
+            DocumentModel parentDoc, List<DocumentModel> result) {
 
-            String title = null;
-            JsonNode propertiesJson = null;
-            if (resultJson.hasNonNull(CALLBACK_RESULT_PROPERTIES)) {
-                propertiesJson = resultJson.get(CALLBACK_RESULT_PROPERTIES);
-                if (propertiesJson.hasNonNull("dc:title")) {
-                    title = propertiesJson.get("dc:title").asText();
+        String chainId = rule.getBatchCallbackId();
+        CoreSession session = contexts.get(indexes.get(0)).getSession();
+        String parentPath = parentDoc.getPathAsString();
+        ImportDecisionCache decisionCache = rule.getDecisionCache();
+        FileImportDecider fileImportDecider = rule.getFileImportDecider();
+
+        int count = indexes.size();
+        ImportDecision[] decisions = new ImportDecision[count];
+        String[] cacheKeys = new String[count];
+        List<Integer> toDecide = new ArrayList<>();
+        int unchanged = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            FileImporterContext context = contexts.get(indexes.get(i));
+            if (rule.isUpdateByDigest()) {
+                DocumentRef existing = childDocumentIndex.findByDigest(session, parentDoc,
+                        digest(context.getBlob(), rule.getDigestAlgorithm()), getFileName(context));
+                if (existing != null) {
+                    // Same file already there: no decision => nothing created
+                    result.set(indexes.get(i), session.getDocument(existing));
+                    unchanged++;
+                    continue;
+                }
+            }
+            if (rule.isDeferredCallback()) {
+                // Split mode: the chain is called by the enrichment work
+                decisions[i] = new ImportDecision(rule.getEnrichmentDocType(), null, null);
+                continue;
+            }
+            if (fileImportDecider != null) {
+                try {
+                    decisions[i] = rule.getGuard().call(() -> fileImportDecider.decide(context, parentDoc));
+                } catch (TrippedException e) {
+                    // This file is declined
+                    tripped(e, chainId);
+                } catch (OperationException | IOException e) {
+                    // Not thrown by a decider
+                    throw new NuxeoException(e);
                 }
+                continue;
             }
-            if (StringUtils.isBlank(title)) {
-                title = StringUtils.defaultIfBlank(context.getFileName(), blob.getFilename());
+            if (decisionCache != null) {
+                Blob blob = context.getBlob();
+                String fileName = StringUtils.defaultIfBlank(context.getFileName(), blob.getFilename());
+                cacheKeys[i] = ImportDecisionCache.key(blob.getMimeType(), FilenameUtils.getExtension(fileName),
+                        parentDoc.getType());
+                ImportDecisionCache.Entry cached = decisionCache.get(cacheKeys[i]);
+                if (cached != null) {
+                    decisions[i] = cached.getDecision();
+                    continue;
+                }
             }
+            toDecide.add(i);
+        }
+        if (fileImportDecider != null) {
+            metrics.time(Phase.CHAIN, chainId, start);
+        }
 
-            doc = session.createDocumentModel(parentDoc.getPathAsString(), title, docType);
-            doc.setPropertyValue("dc:title", title);
-            doc.setPropertyValue("file:content", (Serializable) blob);
-            if (propertiesJson != null) {
-                Properties props = new Properties(propertiesJson);
-                DocumentHelper.setProperties(session, doc, props);
+        if (!toDecide.isEmpty()) {
+            List<FileImporterContext> toDecideContexts = new ArrayList<>();
+            for (int i : toDecide) {
+                toDecideContexts.add(contexts.get(indexes.get(i)));
             }
-            doc = session.createDocument(doc);
 
-        } catch (OperationException | IOException e) {
-            throw new NuxeoException("Failed to run the FileManager callback chain <" + chainId + ">", e);
+            AutomationService as = Framework.getService(AutomationService.class);
+            OperationContext octx = new OperationContext(session);
+            Map<String, Object> params = new HashMap<>();
+            params.put(CALLBACK_PARAM_PARENT_PATH, parentPath);
+            params.put(CALLBACK_PARAM_PARENT_TYPE, parentDoc.getType());
+            setBatchChainInput(rule, octx, params, toDecideContexts);
+
+            List<ImportDecision> chainDecisions;
+            boolean cacheDecisions = decisionCache != null;
+            try {
+                start = System.nanoTime();
+                rule.getGuard().call(() -> as.run(octx, chainId, params));
+                start = metrics.time(Phase.CHAIN, chainId, start);
+                chainDecisions = ImportDecisionParser.parseList(octx.get(CALLBACK_FILEIMPORTER_CTX_VAR_NAME));
+                metrics.time(Phase.PARSE, chainId, start);
+            } catch (TrippedException e) {
+                // The files to decide are declined
+                tripped(e, chainId);
+                chainDecisions = new ArrayList<>(Collections.nCopies(toDecide.size(), (ImportDecision) null));
+                cacheDecisions = false;
+            } catch (OperationException | IOException e) {
+                throw new NuxeoException("Failed to run the FileManager batch callback chain <" + chainId + ">", e);
+            }
+            if (chainDecisions.size() != toDecide.size()) {
+                throw new NuxeoException("The FileManager batch callback chain <" + chainId + "> returned "
+                        + chainDecisions.size() + " results for " + toDecide.size() + " files");
+            }
+
+            for (int j = 0; j < toDecide.size(); j++) {
+                int i = toDecide.get(j);
+                decisions[i] = chainDecisions.get(j);
+                if (cacheDecisions) {
+                    decisionCache.put(cacheKeys[i], decisions[i], getFileName(contexts.get(indexes.get(i))));
+                }
+            }
         }
 
-        return doc;
+        List<Integer> created = new ArrayList<>();
+        List<ImportDecision> createdDecisions = new ArrayList<>();
+        List<DocumentModel> docs = new ArrayList<>();
+        int updated = 0;
+        for (int i = 0; i < count; i++) {
+            if (decisions[i] != null) {
+                FileImporterContext context = contexts.get(indexes.get(i));
+                // Update mode: same file name => new content for the existing document, if it has the expected type
+                if (rule.isUpdateByName() && context.isOverwrite()) {
+                    DocumentModel doc = updateByName(rule, context, parentDoc, decisions[i], chainId);
+                    if (doc != null) {
+                        result.set(indexes.get(i), doc);
+                        updated++;
+                        continue;
+                    }
+                }
+                DocumentModel doc = buildDocumentModel(rule, session, parentDoc, context.getBlob(),
+                        context.getFileName(), immediateDecision(rule, decisions[i]), chainId);
+                disableListeners(rule, doc);
+                docs.add(doc);
+                created.add(indexes.get(i));
+                createdDecisions.add(decisions[i]);
+            }
+        }
+        metrics.count(Outcome.UNCHANGED, chainId, unchanged);
+        metrics.count(Outcome.UPDATED, chainId, updated);
+        metrics.count(Outcome.DECLINED, chainId, count - docs.size() - unchanged - updated);
+        if (docs.isEmpty()) {
+            return;
+        }
+
+        start = System.nanoTime();
+        DocumentModel[] createdDocs = session.createDocument(docs.toArray(new DocumentModel[0]));
+        metrics.time(Phase.CREATE, chainId, start);
+        metrics.count(Outcome.CREATED, chainId, createdDocs.length);
+        for (int j = 0; j < createdDocs.length; j++) {
+            result.set(created.get(j), createdDocs[j]);
+            childDocumentIndex.add(session, parentDoc, createdDocs[j]);
+            enrichLater(rule, session, createdDocs[j], createdDecisions.get(j));
+            replayListenersLater(rule, session, createdDocs[j], true);
+        }
+    }
+
+    @Override
+    public ImportDecisionCache getDecisionCache() {
+        return getDecisionCache(FileImporterAutomationDescriptor.DEFAULT_ID);
+    }
+
+    @Override
+    public ImportDecisionCache getDecisionCache(String ruleId) {
+        ImportRule rule = configuration.getRoutingTable().getRule(ruleId);
+        return rule == null ? null : rule.getDecisionCache();
     }
 
     @Override
     public DocumentModel createFolderish(CoreSession session, String fullname, String path, boolean overwrite,
             TypeManager typeManager) {
+        ImportTrace trace = tracer.begin(ImportTrace.FOLDERISH, fullname, path, 0);
+        long start = System.nanoTime();
+        DocumentModel doc = null;
+        boolean failed = true;
+        try {
+            doc = importFolderish(session, fullname, path, overwrite);
+            failed = false;
+            return doc;
+        } finally {
+            tracer.end(trace);
+            record(ImportTrace.FOLDERISH, session, fullname, null, 0, path, doc, failed, start);
+        }
+    }
+
+    @Override
+    public CompletableFuture<DocumentRef> createFolderishAsync(CoreSession session, String fullname, String path,
+            boolean overwrite) {
+        return asyncImporter.submit(session.getRepositoryName(), session.getPrincipal(),
+                s -> createFolderish(s, fullname, path, overwrite, null));
+    }
+
+    @Override
+    public String getFolderCallbackId(String parentPath, String parentType) {
+        ImportRoutingTable routingTable = configuration.getRoutingTable();
+        return folderCallbackId(routingTable, routingTable.selectFolderRule(parentPath, parentType), parentPath);
+    }
+
+    protected DocumentModel importFolderish(CoreSession session, String fullname, String path, boolean overwrite) {
 
-        if (!hasAFolderImporterChain()) {
+        ImportConfiguration config = configuration;
+        if (!hasAFolderImporterChain(config)) {
             return null;
         }
 
-        String chainId = descriptor.getFolderImporterChain();
         DocumentModel folderish = null;
 
         // Doing as the default fileManagerService, cleaning up
         String title = FileManagerUtils.fetchFileName(fullname);
 
         // See interface => assumes current user has access to the parent
-        PathRef parentRef = new PathRef(path);
-        DocumentModel parentDoc = session.getDocument(parentRef);
+        long start = System.nanoTime();
+        DocumentModel parentDoc;
+        try {
+            parentDoc = parentDocumentCache.getDocument(session, path);
+        } catch (RuntimeException e) {
+            metrics.count(Outcome.FAILED, folderCallbackId(config.getRoutingTable(), null, path));
+            throw e;
+        }
+        metrics.time(Phase.PARENT_LOOKUP, null, start);
 
-        AutomationService as = Framework.getService(AutomationService.class);
-        OperationContext octx = new OperationContext(session);
-        octx.setInput(parentDoc);
-        Map<String, Object> params = new HashMap<>();
-        params.put(CALLBACK_PARAM_FOLDERISH_TITLE, title);
+        ImportRule rule = config.getRoutingTable().selectFolderRule(parentDoc.getPathAsString(), parentDoc.getType());
+        String callbackId = folderCallbackId(config.getRoutingTable(), rule, parentDoc.getPathAsString());
+
+        // Re-importing a tree => reuse the existing Folderish, with no chain call
+        if (overwrite) {
+            DocumentRef existingRef = childDocumentIndex.findByName(session, parentDoc, title);
+            if (existingRef != null) {
+                DocumentModel existing = session.getDocument(existingRef);
+                if (existing.isFolder()) {
+                    parentDocumentCache.put(session, existing);
+                    metrics.count(Outcome.UNCHANGED, callbackId);
+                    return existing;
+                }
+            }
+        }
+
+        if (rule == null) {
+            metrics.count(Outcome.DECLINED, callbackId);
+            return null;
+        }
+
+        start = System.nanoTime();
         try {
-            folderish = (DocumentModel) as.run(octx, chainId, params);
-        } catch (OperationException e) {
-            throw new NuxeoException("Failed to run the FileManager callback chain <" + chainId + ">", e);
+            if (rule.getFolderishFactory() != null) {
+                folderish = rule.getGuard()
+                                .call(() -> rule.getFolderishFactory().createFolderish(session, parentDoc, title));
+            } else {
+                AutomationService as = Framework.getService(AutomationService.class);
+                OperationContext octx = new OperationContext(session);
+                octx.setInput(parentDoc);
+                Map<String, Object> params = new HashMap<>();
+                params.put(CALLBACK_PARAM_FOLDERISH_TITLE, title);
+                folderish = rule.getGuard().call(() -> (DocumentModel) as.run(octx, callbackId, params));
+            }
+        } catch (TrippedException e) {
+            // => AbstractFolderImporter
+            return tripped(e, callbackId);
+        } catch (OperationException | IOException e) {
+            metrics.count(Outcome.FAILED, callbackId);
+            throw new NuxeoException("Failed to run the FileManager callback chain <" + callbackId + ">", e);
+        } catch (RuntimeException e) {
+            metrics.count(Outcome.FAILED, callbackId);
+            throw e;
         }
+        metrics.time(Phase.CHAIN, callbackId, start);
+        metrics.count(folderish == null ? Outcome.DECLINED : Outcome.CREATED, callbackId);
+
+        // Files are typically imported in the Folderish right after
+        parentDocumentCache.put(session, folderish);
+        childDocumentIndex.add(session, parentDoc, folderish);
 
         return folderish;
     }
+
+    @Override
+    public List<DocumentModel> createFolderishHierarchy(CoreSession session, String path, List<String> relativePaths,
+            boolean overwrite) {
+        ImportTrace trace = tracer.begin(ImportTrace.HIERARCHY, relativePaths.size() + " folders", path,
+                relativePaths.size());
+        try {
+            return importHierarchy(session, path, relativePaths, overwrite);
+        } finally {
+            tracer.end(trace);
+        }
+    }
+
+    protected List<DocumentModel> importHierarchy(CoreSession session, String path, List<String> relativePaths,
+            boolean overwrite) {
+
+        ImportConfiguration config = configuration;
+        if (!hasAFolderImporterChain(config)) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+        DocumentModel parentDoc;
+        try {
+            parentDoc = parentDocumentCache.getDocument(session, path);
+        } catch (RuntimeException e) {
+            metrics.count(Outcome.FAILED, pathCallbackId(config.getRoutingTable(), path,
+                    ImportRule::hasFolderHierarchyCallback, ImportRule::getFolderHierarchyCallbackId));
+            throw e;
+        }
+        metrics.time(Phase.PARENT_LOOKUP, null, start);
+
+        ImportRule rule = config.getRoutingTable()
+                                .selectFolderHierarchyRule(parentDoc.getPathAsString(), parentDoc.getType());
+        if (rule == null) {
+            return null;
+        }
+
+        // Parents first: a TreeMap of the levels, each level in the order of the list
+        Map<String, String> normalized = new LinkedHashMap<>();
+        Map<Integer, Set<String>> levels = new TreeMap<>();
+        Set<String> folderPaths = new LinkedHashSet<>();
+        for (String relativePath : relativePaths) {
+            String folderPath = StringUtils.strip(relativePath, "/");
+            if (StringUtils.isNotEmpty(folderPath)) {
+                normalized.put(relativePath, folderPath);
+                if (folderPaths.add(folderPath)) {
+                    levels.computeIfAbsent(StringUtils.countMatches(folderPath, '/'), k -> new LinkedHashSet<>())
+                          .add(folderPath);
+                }
+            }
+        }
+
+        String callbackId = rule.getFolderHierarchyCallbackId();
+        Map<String, String> types;
+        start = System.nanoTime();
+        try {
+            types = getFolderishTypes(rule, session, parentDoc, new ArrayList<>(folderPaths));
+        } catch (TrippedException e) {
+            // => the folders are created one by one
+            tripped(e, callbackId);
+            return null;
+        } catch (RuntimeException e) {
+            metrics.count(Outcome.FAILED, callbackId);
+            throw e;
+        }
+        if (types == null) {
+            // A FolderishFactory not handling hierarchies
+            return null;
+        }
+        metrics.time(Phase.CHAIN, callbackId, start);
+
+        PathSegmentService pathSegmentService = Framework.getService(PathSegmentService.class);
+        Map<String, DocumentModel> folders = new HashMap<>();
+        for (Set<String> level : levels.values()) {
+            List<String> toCreate = new ArrayList<>();
+            List<DocumentModel> parents = new ArrayList<>();
+            List<DocumentModel> docs = new ArrayList<>();
+            for (String folderPath : level) {
+                int slash = folderPath.lastIndexOf('/');
+                DocumentModel levelParent = slash < 0 ? parentDoc : folders.get(folderPath.substring(0, slash));
+                String type = types.get(folderPath);
+                if (levelParent == null || StringUtils.isBlank(type)) {
+                    metrics.count(Outcome.DECLINED, callbackId);
+                    continue;
+                }
+                String title = folderPath.substring(slash + 1);
+                if (overwrite) {
+                    DocumentRef existingRef = childDocumentIndex.findByName(session, levelParent, title);
+                    if (existingRef != null) {
+                        DocumentModel existing = session.getDocument(existingRef);
+                        if (existing.isFolder()) {
+                            folders.put(folderPath, existing);
+                            parentDocumentCache.put(session, existing);
+                            metrics.count(Outcome.UNCHANGED, callbackId);
+                            continue;
+                        }
+                    }
+                }
+                DocumentModel doc = session.createDocumentModel(levelParent.getPathAsString(),
+                        pathSegmentService.generatePathSegment(title), type.trim());
+                doc.setPropertyValue("dc:title", title);
+                doc.putContextData(ChildDocumentIndex.INDEXED, Boolean.TRUE);
+                disableListeners(rule, doc);
+                toCreate.add(folderPath);
+                parents.add(levelParent);
+                docs.add(doc);
+            }
+            if (docs.isEmpty()) {
+                continue;
+            }
+
+            start = System.nanoTime();
+            DocumentModel[] createdDocs;
+            try {
+                createdDocs = session.createDocument(docs.toArray(new DocumentModel[0]));
+            } catch (RuntimeException e) {
+                metrics.count(Outcome.FAILED, callbackId);
+                throw e;
+            }
+            metrics.time(Phase.CREATE, callbackId, start);
+            metrics.count(Outcome.CREATED, callbackId, createdDocs.length);
+            for (int i = 0; i < createdDocs.length; i++) {
+                folders.put(toCreate.get(i), createdDocs[i]);
+                parentDocumentCache.put(session, createdDocs[i]);
+                childDocumentIndex.add(session, parents.get(i), createdDocs[i]);
+                replayListenersLater(rule, session, createdDocs[i], true);
+            }
+        }
+
+        List<DocumentModel> result = new ArrayList<>(relativePaths.size());
+        for (String relativePath : relativePaths) {
+            String folderPath = normalized.get(relativePath);
+            result.add(folderPath == null ? null : folders.get(folderPath));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the type of each folder, from the FolderishFactory or the hierarchy chain, or null if the factory does
+     * not handle hierarchies.
+     */
+    protected Map<String, String> getFolderishTypes(ImportRule rule, CoreSession session, DocumentModel parentDoc,
+            List<String> folderPaths) {
+
+        String chainId = rule.getFolderHierarchyCallbackId();
+        try {
+            if (rule.getFolderishFactory() != null) {
+                return rule.getGuard()
+                           .call(() -> rule.getFolderishFactory().getFolderishTypes(session, parentDoc, folderPaths));
+            }
+
+            AutomationService as = Framework.getService(AutomationService.class);
+            OperationContext octx = new OperationContext(session);
+            octx.setInput(parentDoc);
+            Map<String, Object> params = new HashMap<>();
+            params.put(CALLBACK_PARAM_PARENT_PATH, parentDoc.getPathAsString());
+            params.put(CALLBACK_PARAM_PARENT_TYPE, parentDoc.getType());
+            params.put(CALLBACK_PARAM_FOLDERISH_PATHS, new StringList(folderPaths));
+            rule.getGuard().call(() -> as.run(octx, chainId, params));
+            return ImportDecisionParser.parseTypes(octx.get(CALLBACK_FILEIMPORTER_CTX_VAR_NAME));
+        } catch (OperationException | IOException e) {
+            throw new NuxeoException("Failed to run the FileManager hierarchy callback chain <" + chainId + ">", e);
+        }
+    }
+
+    @Override
+    public ParentDocumentCache getParentDocumentCache() {
+        return parentDocumentCache;
+    }
+
+    @Override
+    public ChildDocumentIndex getChildDocumentIndex() {
+        return childDocumentIndex;
+    }
+
+    @Override
+    public ImportMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public ImportTracer getTracer() {
+        return tracer;
+    }
+
+    @Override
+    public DocumentPrototypes getDocumentPrototypes() {
+        return documentPrototypes;
+    }
+
+    @Override
+    public BlobWritePipeline getBlobWritePipeline() {
+        return blobWritePipeline;
+    }
+
+    @Override
+    public ImportRecorder getRecorder() {
+        return recorder;
+    }
+
+    @Override
+    public AsyncImporter getAsyncImporter() {
+        return asyncImporter;
+    }
 }
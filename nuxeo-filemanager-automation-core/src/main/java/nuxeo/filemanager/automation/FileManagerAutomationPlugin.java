@@ -18,6 +18,8 @@
  */
 package nuxeo.filemanager.automation;
 
+import java.io.IOException;
+
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.platform.filemanager.api.FileImporterContext;
@@ -34,9 +36,43 @@ public class FileManagerAutomationPlugin extends AbstractFileImporter {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * A call to the FileManager.
+     */
+    @FunctionalInterface
+    public interface FileManagerCall<T> {
+        T call() throws IOException;
+    }
+
+    // Set while the FileManager imports a file the service already declined
+    protected static final ThreadLocal<Boolean> SKIPPED = new ThreadLocal<>();
+
+    /**
+     * Runs {@code call}, typically {@code FileManager#createOrUpdateDocument}, with this plugin disabled in the current
+     * thread: used to fall back to the other plugins for a file the service declined, without calling its callback
+     * again.
+     *
+     * @since 2023.1
+     */
+    public static <T> T withoutPlugin(FileManagerCall<T> call) throws IOException {
+        Boolean previous = SKIPPED.get();
+        SKIPPED.set(Boolean.TRUE);
+        try {
+            return call.call();
+        } finally {
+            if (previous == null) {
+                SKIPPED.remove();
+            }
+        }
+    }
+
     @Override
     public DocumentModel createOrUpdate(FileImporterContext context) throws NuxeoException {
 
+        if (SKIPPED.get() != null) {
+            return null;
+        }
+
         FileImporterAutomationService service = Framework.getService(FileImporterAutomationService.class);
 
         return service.createOrUpdate(context);
@@ -45,7 +45,16 @@ public class FolderImporter extends AbstractFolderImporter {
             return folderish;
         }
         
-        return super.create(documentManager, fullname, path, overwrite, typeManager);
+        DocumentModel parentDoc = service.getParentDocumentCache().getDocument(documentManager, path);
+        service.getMetrics()
+               .count(ImportMetrics.Outcome.FALLBACK,
+                       service.getFolderCallbackId(parentDoc.getPathAsString(), parentDoc.getType()));
+        folderish = super.create(documentManager, fullname, path, overwrite, typeManager);
+        // Files are typically imported in the Folderish right after
+        service.getParentDocumentCache().put(documentManager, folderish);
+        service.getChildDocumentIndex().add(documentManager, parentDoc, folderish);
+
+        return folderish;
     }
 
 }
@@ -0,0 +1,435 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+import org.nuxeo.ecm.platform.filemanager.api.FileImporterContext;
+import org.nuxeo.ecm.platform.filemanager.api.FileManager;
+import org.nuxeo.ecm.platform.mimetype.interfaces.MimetypeRegistry;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Imports a directory tree (a server-local directory, or the root of a zip file system) in a container.
+ * <ol>
+ * <li>The folders are created first: all at once with
+ * {@link FileImporterAutomationService#createFolderishHierarchy(CoreSession, String, List, boolean)} if a hierarchy
+ * callback is configured, otherwise level by level through the FileManager (so the FolderImporter of the plugin, and
+ * its callback, is used)</li>
+ * <li>Then the files are imported by a bounded pool of workers, each batch of files in its own session and
+ * transaction, through {@link FileImporterAutomationService#createOrUpdate(FileImporterContext)}. The files it does
+ * not handle are imported by the FileManager. The files are streamed from the walk of the tree, a batch can hold the
+ * files of several folders</li>
+ * </ol>
+ * A transaction is committed every {@code batchSize} documents. When a document of a batch fails, or the batch fails
+ * to commit, the batch is rolled back and imported again one document per transaction, so only the failing documents
+ * are lost and reported.
+ * <br>
+ * The caller's transaction is not used: the documents are visible to the caller once {@link #run(Path, String)}
+ * returns.
+ *
+ * @since 2023.1
+ */
+public class FolderTreeImporter {
+
+    private static final Logger log = LogManager.getLogger(FolderTreeImporter.class);
+
+    protected final String repositoryName;
+
+    protected final NuxeoPrincipal principal;
+
+    protected final int workers;
+
+    protected final int batchSize;
+
+    protected final boolean overwrite;
+
+    protected final TreeImportReport report = new TreeImportReport();
+
+    /**
+     * A document to import: a folder or a file, with its path relative to the root of the tree.
+     */
+    protected interface Task {
+        void run(CoreSession session) throws IOException;
+
+        /** Called once the transaction of the task is committed. */
+        void committed();
+
+        /** Called when the transaction of the task is rolled back. */
+        default void rolledBack() {
+        }
+
+        String getRelativePath();
+    }
+
+    public FolderTreeImporter(String repositoryName, NuxeoPrincipal principal, int workers, int batchSize,
+            boolean overwrite) {
+        this.repositoryName = repositoryName;
+        this.principal = principal;
+        this.workers = Math.max(workers, 1);
+        this.batchSize = Math.max(batchSize, 1);
+        this.overwrite = overwrite;
+    }
+
+    public TreeImportReport getReport() {
+        return report;
+    }
+
+    /**
+     * Imports the content of {@code root} (not the root itself) in the container at {@code targetPath}.
+     */
+    public TreeImportReport run(Path root, String targetPath) throws IOException {
+
+        // The folders are created before the files, in one hierarchy
+        List<Path> directories;
+        try (Stream<Path> paths = Files.walk(root)) {
+            directories = paths.filter(p -> !p.equals(root) && Files.isDirectory(p)).collect(Collectors.toList());
+        }
+        // Parents first
+        directories.sort(Comparator.comparingInt(Path::getNameCount));
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers, newThreadFactory());
+        try {
+            // Folders: one worker, so the parents always exist
+            Map<Path, String> docPaths = new HashMap<>();
+            docPaths.put(root, targetPath);
+            waitFor(List.of(executor.submit(() -> {
+                createHierarchy(root, directories, docPaths);
+                List<Task> folderTasks = new ArrayList<>();
+                for (Path directory : directories) {
+                    if (!docPaths.containsKey(directory)) {
+                        folderTasks.add(folderTask(root, directory, docPaths));
+                    }
+                }
+                runBatches(folderTasks);
+            })));
+            log.info("Tree import of {}: {}", root, report);
+
+            // Files: streamed, in batches of batchSize files whatever their folder. The walk lists the files of a
+            // folder together, so its parent stays cached in the transaction
+            Semaphore pending = new Semaphore(workers * 2);
+            List<Future<?>> futures = new ArrayList<>();
+            List<Task> batch = new ArrayList<>(batchSize);
+            try (Stream<Path> paths = Files.walk(root)) {
+                Iterator<Path> files = paths.filter(p -> !Files.isDirectory(p)).iterator();
+                while (files.hasNext()) {
+                    Path file = files.next();
+                    String parentPath = docPaths.get(file.getParent());
+                    if (parentPath == null) {
+                        // The folder failed
+                        report.failed(relativePath(root, file), new NuxeoException("Parent folder not imported"));
+                        continue;
+                    }
+                    batch.add(fileTask(root, file, parentPath));
+                    if (batch.size() == batchSize) {
+                        submitBatch(executor, pending, futures, batch);
+                        batch = new ArrayList<>(batchSize);
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                submitBatch(executor, pending, futures, batch);
+            }
+            waitFor(futures);
+        } finally {
+            executor.shutdownNow();
+            report.done();
+        }
+        log.info("Tree import of {} done: {}", root, report);
+        return report;
+    }
+
+    /**
+     * Submits a batch of files once a worker can take it: at most 2 batches per worker are waiting, so the walk does
+     * not read the whole tree ahead.
+     */
+    protected void submitBatch(ExecutorService executor, Semaphore pending, List<Future<?>> futures,
+            List<Task> batch) {
+        List<Future<?>> done = new ArrayList<>();
+        for (Future<?> future : futures) {
+            if (future.isDone()) {
+                done.add(future);
+            }
+        }
+        waitFor(done);
+        futures.removeAll(done);
+        try {
+            pending.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException("Tree import interrupted", e);
+        }
+        futures.add(executor.submit(() -> {
+            try {
+                runBatch(batch);
+            } finally {
+                pending.release();
+            }
+        }));
+    }
+
+    protected static ThreadFactory newThreadFactory() {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, "filemanager-automation-tree-import-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    protected static void waitFor(List<Future<?>> futures) {
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException("Tree import interrupted", e);
+        } catch (ExecutionException e) {
+            throw new NuxeoException("Tree import failed", e.getCause());
+        }
+    }
+
+    // Same separator for the server directories and the zip entries, whatever the OS
+    protected static String relativePath(Path root, Path path) {
+        List<String> names = new ArrayList<>();
+        root.relativize(path).forEach(name -> names.add(name.toString().replace("/", "")));
+        return String.join("/", names);
+    }
+
+    /**
+     * Creates all the folders at once with {@link FileImporterAutomationService#createFolderishHierarchy}, in one
+     * transaction. The folders it does not create are then created one by one through the FileManager.
+     */
+    protected void createHierarchy(Path root, List<Path> directories, Map<Path, String> docPaths) {
+        if (directories.isEmpty()) {
+            return;
+        }
+        List<String> relativePaths = new ArrayList<>(directories.size());
+        for (Path directory : directories) {
+            relativePaths.add(relativePath(root, directory));
+        }
+        CoreSession session = CoreInstance.getCoreSession(repositoryName, principal);
+        Map<Path, String> created = new HashMap<>();
+        TransactionHelper.startTransaction();
+        try {
+            List<DocumentModel> folders = Framework.getService(FileImporterAutomationService.class)
+                                                   .createFolderishHierarchy(session, docPaths.get(root),
+                                                           relativePaths, overwrite);
+            if (folders != null) {
+                for (int i = 0; i < folders.size(); i++) {
+                    if (folders.get(i) != null) {
+                        created.put(directories.get(i), folders.get(i).getPathAsString());
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("Failed to create the folder hierarchy, creating the folders one by one", e);
+            created.clear();
+            TransactionHelper.setTransactionRollbackOnly();
+        } finally {
+            try {
+                TransactionHelper.commitOrRollbackTransaction();
+            } catch (RuntimeException e) {
+                if (!created.isEmpty()) {
+                    log.warn("Failed to commit the folder hierarchy, creating the folders one by one", e);
+                    created.clear();
+                }
+            }
+        }
+        docPaths.putAll(created);
+        for (int i = 0; i < created.size(); i++) {
+            report.folderImported();
+        }
+    }
+
+    protected Task folderTask(Path root, Path directory, Map<Path, String> docPaths) {
+        String relativePath = relativePath(root, directory);
+        return new Task() {
+
+            @Override
+            public void run(CoreSession session) {
+                // docPaths is only used by the folder worker, then read after it is done
+                String parentPath = docPaths.get(directory.getParent());
+                if (parentPath == null) {
+                    throw new NuxeoException("Parent folder not imported");
+                }
+                String name = directory.getFileName().toString().replace("/", "");
+                DocumentModel folder = Framework.getService(FileManager.class)
+                                                .createFolder(session, name, parentPath, overwrite);
+                docPaths.put(directory, folder.getPathAsString());
+            }
+
+            @Override
+            public void committed() {
+                report.folderImported();
+            }
+
+            @Override
+            public void rolledBack() {
+                docPaths.remove(directory);
+            }
+
+            @Override
+            public String getRelativePath() {
+                return relativePath;
+            }
+        };
+    }
+
+    protected Task fileTask(Path root, Path file, String parentPath) {
+        String relativePath = relativePath(root, file);
+        return new Task() {
+
+            @Override
+            public void run(CoreSession session) throws IOException {
+                String fileName = file.getFileName().toString().replace("/", "");
+                Blob blob;
+                if (file.getFileSystem() == FileSystems.getDefault()) {
+                    blob = Blobs.createBlob(file.toFile());
+                } else {
+                    // Zip entry
+                    try (InputStream in = Files.newInputStream(file)) {
+                        blob = Blobs.createBlob(in);
+                    }
+                }
+                blob.setFilename(fileName);
+                blob.setMimeType(Framework.getService(MimetypeRegistry.class)
+                                          .getMimetypeFromFilenameAndBlobWithDefault(fileName, blob,
+                                                  "application/octet-stream"));
+
+                FileImporterContext context = FileImporterContext.builder(session, blob, parentPath)
+                                                                 .overwrite(overwrite)
+                                                                 .fileName(fileName)
+                                                                 .build();
+                DocumentModel doc = Framework.getService(FileImporterAutomationService.class).createOrUpdate(context);
+                if (doc == null) {
+                    // Declined by the plugin: the next FileManager plugins only
+                    FileManagerAutomationPlugin.withoutPlugin(
+                            () -> Framework.getService(FileManager.class).createOrUpdateDocument(context));
+                }
+            }
+
+            @Override
+            public void committed() {
+                report.fileImported();
+            }
+
+            @Override
+            public String getRelativePath() {
+                return relativePath;
+            }
+        };
+    }
+
+    protected void runBatches(List<Task> tasks) {
+        for (int i = 0; i < tasks.size(); i += batchSize) {
+            runBatch(tasks.subList(i, Math.min(i + batchSize, tasks.size())));
+        }
+    }
+
+    /**
+     * Runs the tasks in one transaction. If one fails, runs them again one per transaction.
+     */
+    protected void runBatch(List<Task> tasks) {
+        CoreSession session = CoreInstance.getCoreSession(repositoryName, principal);
+        if (!runInTransaction(session, tasks)) {
+            for (Task task : tasks) {
+                runInTransaction(session, List.of(task));
+            }
+        }
+        log.debug("Tree import progress: {}", report);
+    }
+
+    /**
+     * Returns false if the transaction was rolled back, or failed to commit. A failure is reported only for a single
+     * task.
+     */
+    protected boolean runInTransaction(CoreSession session, List<Task> tasks) {
+        boolean ok = false;
+        Exception failure = null;
+        TransactionHelper.startTransaction();
+        try {
+            for (Task task : tasks) {
+                task.run(session);
+            }
+            ok = true;
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+            TransactionHelper.setTransactionRollbackOnly();
+        } finally {
+            try {
+                TransactionHelper.commitOrRollbackTransaction();
+            } catch (RuntimeException e) {
+                // Only this batch fails
+                if (ok) {
+                    ok = false;
+                    failure = e;
+                }
+            }
+        }
+        if (!ok) {
+            if (tasks.size() == 1) {
+                Task task = tasks.get(0);
+                log.warn("Failed to import {}", task.getRelativePath(), failure);
+                report.failed(task.getRelativePath(), failure);
+            } else {
+                log.debug("Batch failed, importing its documents one by one", failure);
+            }
+        }
+        for (Task task : tasks) {
+            if (ok) {
+                task.committed();
+            } else {
+                task.rolledBack();
+            }
+        }
+        return ok;
+    }
+
+}
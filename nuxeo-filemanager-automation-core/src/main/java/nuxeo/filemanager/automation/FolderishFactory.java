@@ -0,0 +1,66 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.util.List;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+
+/**
+ * Java alternative to the FolderImporter callback chain, contributed with the {@code <folderishFactory>} element of
+ * the XML configuration. When set, it is used instead of the {@code folderImporterChain}.
+ * <br>
+ * Implementations must be thread safe and have a public no-arg constructor.
+ *
+ * @since 2023.1
+ */
+public interface FolderishFactory {
+
+    /**
+     * Creates and returns the Folderish, or returns null to let the default FolderImporter create a {@code Folder}.
+     *
+     * @param session the session to use
+     * @param parentDoc the container where the Folderish is to be created
+     * @param title the title of the Folderish (the name of the folder imported)
+     * @return the created Folderish or null
+     */
+    DocumentModel createFolderish(CoreSession session, DocumentModel parentDoc, String title);
+
+    /**
+     * Returns the type of the Folderish to create for each folder of a tree, used instead of the
+     * {@code folderHierarchyChain}. A missing or null type means the folder (and its sub folders) is not created by
+     * the plugin.
+     * <br>
+     * The default implementation returns null: the factory does not handle hierarchies, and the folders are created
+     * one by one with {@link #createFolderish(CoreSession, DocumentModel, String)}.
+     *
+     * @param session the session to use
+     * @param parentDoc the container where the tree is to be created
+     * @param relativePaths the paths of the folders, relative to {@code parentDoc}, like "a", "a/b"
+     * @return the type of each relative path, or null
+     * @since 2023.1
+     */
+    default Map<String, String> getFolderishTypes(CoreSession session, DocumentModel parentDoc,
+            List<String> relativePaths) {
+        return null;
+    }
+
+}
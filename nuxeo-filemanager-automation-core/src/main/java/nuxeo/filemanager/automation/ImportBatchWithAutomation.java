@@ -0,0 +1,106 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.automation.core.util.BlobList;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.impl.DocumentModelListImpl;
+import org.nuxeo.ecm.platform.filemanager.api.FileImporterContext;
+import org.nuxeo.ecm.platform.filemanager.api.FileManager;
+
+/**
+ * Imports a list of blobs in a container using {@link FileImporterAutomationService#createOrUpdateBatch(List)}.
+ * The files the batch callback chain does not handle are imported by the other FileManager plugins, as
+ * FileManager.Import does, without calling the callback again.
+ *
+ * @since 2023.1
+ */
+@Operation(id = ImportBatchWithAutomation.ID, category = Constants.CAT_SERVICES, label = "Batch Import with Automation", description = "Imports the input blobs in the container (path parameter, or currentDocument if not set), calling the batch callback chain once for all the files. The files not handled by the chain are imported by the FileManager. Returns the created documents.")
+public class ImportBatchWithAutomation {
+
+    public static final String ID = "FileManager.ImportBatchWithAutomation";
+
+    @Context
+    protected CoreSession session;
+
+    @Context
+    protected OperationContext context;
+
+    @Context
+    protected FileImporterAutomationService fileImporterAutomationService;
+
+    @Context
+    protected FileManager fileManager;
+
+    @Param(name = "path", required = false)
+    protected String path;
+
+    @Param(name = "overwrite", required = false)
+    protected boolean overwrite = false;
+
+    @OperationMethod
+    public DocumentModelList run(BlobList blobs) throws IOException {
+
+        String parentPath = path;
+        if (StringUtils.isBlank(parentPath)) {
+            DocumentModel currentDocument = (DocumentModel) context.get("currentDocument");
+            if (currentDocument == null) {
+                throw new NuxeoException("No path parameter and no currentDocument in the context");
+            }
+            parentPath = currentDocument.getPathAsString();
+        }
+
+        List<FileImporterContext> contexts = new ArrayList<>(blobs.size());
+        for (Blob blob : blobs) {
+            contexts.add(FileImporterContext.builder(session, blob, parentPath).overwrite(overwrite).build());
+        }
+
+        List<DocumentModel> docs = fileImporterAutomationService.createOrUpdateBatch(contexts);
+
+        DocumentModelList result = new DocumentModelListImpl();
+        for (int i = 0; i < docs.size(); i++) {
+            DocumentModel doc = docs.get(i);
+            if (doc == null) {
+                // Declined by the plugin: the next FileManager plugins only
+                FileImporterContext context = contexts.get(i);
+                doc = FileManagerAutomationPlugin.withoutPlugin(() -> fileManager.createOrUpdateDocument(context));
+            }
+            if (doc != null) {
+                result.add(doc);
+            }
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the configuration: the effective descriptors and the rules compiled from them. A new snapshot
+ * is built each time a contribution is registered or unregistered, then published at once, so an import always sees a
+ * consistent configuration, even during a hot reload.
+ *
+ * @since 2023.1
+ */
+public class ImportConfiguration {
+
+    public static final ImportConfiguration EMPTY = new ImportConfiguration(Collections.emptyList());
+
+    protected final Map<String, FileImporterAutomationDescriptor> descriptors;
+
+    protected final ImportRoutingTable routingTable;
+
+    /**
+     * @param contributions the registered contributions, in registration order. A contribution replaces the previous
+     *            one with the same id.
+     */
+    public ImportConfiguration(List<FileImporterAutomationDescriptor> contributions) {
+        Map<String, FileImporterAutomationDescriptor> effective = new LinkedHashMap<>();
+        for (FileImporterAutomationDescriptor contribution : contributions) {
+            effective.put(contribution.getId(), contribution);
+        }
+        descriptors = Collections.unmodifiableMap(effective);
+
+        List<ImportRule> rules = new ArrayList<>(effective.size());
+        for (FileImporterAutomationDescriptor descriptor : effective.values()) {
+            rules.add(new ImportRule(descriptor));
+        }
+        routingTable = new ImportRoutingTable(rules);
+    }
+
+    public boolean isEmpty() {
+        return descriptors.isEmpty();
+    }
+
+    public Map<String, FileImporterAutomationDescriptor> getDescriptors() {
+        return descriptors;
+    }
+
+    public ImportRoutingTable getRoutingTable() {
+        return routingTable;
+    }
+
+}
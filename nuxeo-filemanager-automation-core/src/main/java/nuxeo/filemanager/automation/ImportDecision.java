@@ -0,0 +1,135 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.nuxeo.ecm.automation.core.util.Properties;
+
+/**
+ * The result of the FileImporter callback: the type of document to create and, optionally, the properties to set.
+ * <br>
+ * A decision is immutable. The part of it that does not depend on the file can be cached, see
+ * {@link #withoutFileProperties(String, Collection)}.
+ *
+ * @since 2023.1
+ */
+public class ImportDecision {
+
+    protected final String docType;
+
+    protected final String title;
+
+    protected final Properties properties;
+
+    protected final Map<String, Serializable> values;
+
+    /**
+     * @param docType the type of document to create, required
+     * @param title the title set by the callback ("dc:title" in the properties), can be null
+     * @param properties the properties to set, can be null
+     */
+    public ImportDecision(String docType, String title, Properties properties) {
+        this.docType = docType;
+        this.title = title;
+        this.properties = properties;
+        this.values = null;
+    }
+
+    /**
+     * Typed version, for Java callbacks: the values are set as is on the document, with no conversion.
+     *
+     * @param docType the type of document to create, required
+     * @param values the values to set, by xpath ("dc:title" is used as the title), can be null
+     */
+    public ImportDecision(String docType, Map<String, Serializable> values) {
+        this.docType = docType;
+        this.title = values == null ? null : (String) values.get("dc:title");
+        this.properties = null;
+        this.values = values;
+    }
+
+    protected ImportDecision(String docType, String title, Properties properties, Map<String, Serializable> values) {
+        this.docType = docType;
+        this.title = title;
+        this.properties = properties;
+        this.values = values;
+    }
+
+    /**
+     * Returns the part of the decision that can be reused for other files: the type and the properties, without the
+     * title, the given xpaths and the properties whose value contains the file name.
+     *
+     * @param fileName the name of the file the decision was made for, can be null
+     * @param perFileXpaths the properties depending on the file
+     */
+    public ImportDecision withoutFileProperties(String fileName, Collection<String> perFileXpaths) {
+        Properties staticProperties = null;
+        if (properties != null) {
+            staticProperties = new Properties();
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                if (!isPerFile(property.getKey(), property.getValue(), fileName, perFileXpaths)) {
+                    staticProperties.put(property.getKey(), property.getValue());
+                }
+            }
+        }
+        Map<String, Serializable> staticValues = null;
+        if (values != null) {
+            staticValues = new HashMap<>();
+            for (Map.Entry<String, Serializable> value : values.entrySet()) {
+                if (!isPerFile(value.getKey(), value.getValue(), fileName, perFileXpaths)) {
+                    staticValues.put(value.getKey(), value.getValue());
+                }
+            }
+        }
+        return new ImportDecision(docType, null, staticProperties, staticValues);
+    }
+
+    protected static boolean isPerFile(String xpath, Serializable value, String fileName,
+            Collection<String> perFileXpaths) {
+        return "dc:title".equals(xpath) || perFileXpaths.contains(xpath)
+                || fileName != null && value instanceof String && ((String) value).contains(fileName);
+    }
+
+    public String getDocType() {
+        return docType;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * Returns the properties to set as strings, converted by the automation {@code DocumentHelper}. Can be null.
+     */
+    public Properties getProperties() {
+        return properties;
+    }
+
+    /**
+     * Returns the typed values to set as is. Can be null.
+     */
+    public Map<String, Serializable> getValues() {
+        return values;
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Bounded LRU cache of the FileImporter callback decisions, with a time to live.
+ * <br>
+ * The key is built from the mime type, the file extension and the parent's type, so it must be enabled only when the
+ * callback chain decides based on these values only. Only the part of a decision that does not depend on the file is
+ * cached: the type and the properties, without the title and the per file properties, see
+ * {@link ImportDecision#withoutFileProperties(String, Collection)}. Negative decisions ("do nothing, let the next
+ * plugin handle the file") are cached too.
+ *
+ * @since 2023.1
+ */
+public class ImportDecisionCache {
+
+    protected final int maxSize;
+
+    protected final long ttlMillis;
+
+    protected final Set<String> perFileXpaths;
+
+    protected final AtomicLong hits = new AtomicLong();
+
+    protected final AtomicLong misses = new AtomicLong();
+
+    protected final AtomicLong evictions = new AtomicLong();
+
+    protected final Map<String, Entry> entries;
+
+    /**
+     * A cached decision, without the title and the per file properties. {@link #getDecision()} is null when the
+     * callback declined the import.
+     */
+    public static class Entry {
+
+        protected final ImportDecision decision;
+
+        protected final long expiresAt;
+
+        protected Entry(ImportDecision decision, long expiresAt) {
+            this.decision = decision;
+            this.expiresAt = expiresAt;
+        }
+
+        public ImportDecision getDecision() {
+            return decision;
+        }
+
+    }
+
+    /**
+     * @param maxSize max. number of decisions kept
+     * @param ttlSeconds time to live of a decision, 0 or less means no expiration
+     * @param perFileXpaths the properties returned by the callback that depend on the file, not cached
+     */
+    public ImportDecisionCache(int maxSize, long ttlSeconds, Collection<String> perFileXpaths) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlSeconds > 0 ? ttlSeconds * 1000 : 0;
+        this.perFileXpaths = new HashSet<>();
+        for (String xpath : perFileXpaths) {
+            this.perFileXpaths.add(xpath.trim());
+        }
+        entries = new LinkedHashMap<>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ImportDecisionCache.Entry> eldest) {
+                if (size() > ImportDecisionCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public static String key(String mimeType, String extension, String parentType) {
+        return StringUtils.defaultString(mimeType) + '|' + StringUtils.lowerCase(StringUtils.defaultString(extension))
+                + '|' + parentType;
+    }
+
+    /**
+     * Returns the cached entry for the key, or null if there is no valid entry (a miss).
+     */
+    public Entry get(String key) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null && ttlMillis > 0 && entry.expiresAt < System.currentTimeMillis()) {
+                entries.remove(key);
+                evictions.incrementAndGet();
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Caches the part of the decision that does not depend on the file. A null decision is cached as "declined".
+     *
+     * @param fileName the name of the file the decision was made for
+     */
+    public void put(String key, ImportDecision decision, String fileName) {
+        long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : Long.MAX_VALUE;
+        ImportDecision cached = decision == null ? null : decision.withoutFileProperties(fileName, perFileXpaths);
+        synchronized (entries) {
+            entries.put(key, new Entry(cached, expiresAt));
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import static nuxeo.filemanager.automation.FileImporterAutomationService.CALLBACK_RESULT_DOCTYPE;
+import static nuxeo.filemanager.automation.FileImporterAutomationService.CALLBACK_RESULT_PROPERTIES;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.automation.core.util.Properties;
+import org.nuxeo.ecm.core.schema.utils.DateParser;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Reads the result of a callback chain (the CALLBACK_FILEIMPORTER_CTX_VAR_NAME context variable) into
+ * {@link ImportDecision}s.
+ * <br>
+ * The chain can return:
+ * <ul>
+ * <li>A JSON string, parsed in streaming, with a shared reader (no tree is built, except for complex property
+ * values)</li>
+ * <li>A {@code Map} (a Java Map, an automation {@code Properties}, or a scripting object unwrapped by the automation
+ * scripting), used as is</li>
+ * </ul>
+ * Whatever the format, the property values are converted the same way: strings are kept, other values are
+ * serialized as JSON, so {@code DocumentHelper} converts them as it does for the JSON string.
+ *
+ * @since 2023.1
+ */
+public class ImportDecisionParser {
+
+    // NOTICE: Using Jackson instead of default org.json.JSONObject because we use a converter to Nuxeo Properties,
+    // that expect Jackson JSON values
+    protected static final ObjectMapper MAPPER = new ObjectMapper();
+
+    protected static final ObjectReader READER = MAPPER.reader();
+
+    protected static final ObjectWriter WRITER = MAPPER.writer();
+
+    private ImportDecisionParser() {
+        // utility class
+    }
+
+    /**
+     * Returns the decision returned by the FileImporter callback chain, or null if the chain did not return a docType
+     * (=> do nothing)
+     */
+    public static ImportDecision parse(Object result) throws IOException {
+
+        if (result == null) {
+            return null;
+        }
+        if (result instanceof Map) {
+            return toDecision((Map<?, ?>) result);
+        }
+
+        String resultStr = result.toString();
+        if (StringUtils.isBlank(resultStr)) {
+            return null;
+        }
+        try (JsonParser parser = READER.createParser(resultStr)) {
+            JsonToken token = parser.nextToken();
+            if (token != JsonToken.START_OBJECT) {
+                return null;
+            }
+            return readDecision(parser);
+        }
+    }
+
+    /**
+     * Returns the decisions returned by the batch callback chain, one element per file. A null element means "do
+     * nothing" for this file.
+     */
+    public static List<ImportDecision> parseList(Object result) throws IOException {
+
+        List<ImportDecision> decisions = new ArrayList<>();
+        if (result == null) {
+            return decisions;
+        }
+        if (result instanceof List) {
+            for (Object element : (List<?>) result) {
+                decisions.add(element instanceof Map ? toDecision((Map<?, ?>) element) : parse(element));
+            }
+            return decisions;
+        }
+
+        String resultStr = result.toString();
+        if (StringUtils.isBlank(resultStr)) {
+            return decisions;
+        }
+        try (JsonParser parser = READER.createParser(resultStr)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("The batch callback chain must return a JSON array");
+            }
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (token == JsonToken.START_OBJECT) {
+                    decisions.add(readDecision(parser));
+                } else {
+                    parser.skipChildren();
+                    decisions.add(null);
+                }
+            }
+        }
+        return decisions;
+    }
+
+    /**
+     * Returns the types returned by the Folderish hierarchy callback chain: a JSON object (or a Map) with the relative
+     * path of each folder as key and its type as value. A null value means "do nothing" for this folder.
+     */
+    public static Map<String, String> parseTypes(Object result) throws IOException {
+
+        Map<String, String> types = new HashMap<>();
+        if (result == null) {
+            return types;
+        }
+        if (result instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) result).entrySet()) {
+                Object type = entry.getValue();
+                types.put(entry.getKey().toString(), type == null ? null : StringUtils.trimToNull(type.toString()));
+            }
+            return types;
+        }
+
+        String resultStr = result.toString();
+        if (StringUtils.isBlank(resultStr)) {
+            return types;
+        }
+        try (JsonParser parser = READER.createParser(resultStr)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("The Folderish hierarchy callback chain must return a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String path = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (token.isScalarValue() && token != JsonToken.VALUE_NULL) {
+                    types.put(path, StringUtils.trimToNull(parser.getValueAsString()));
+                } else {
+                    parser.skipChildren();
+                    types.put(path, null);
+                }
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Reads the decision of the JSON object the parser is positioned on (START_OBJECT)
+     */
+    protected static ImportDecision readDecision(JsonParser parser) throws IOException {
+
+        String docType = null;
+        Properties properties = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (CALLBACK_RESULT_DOCTYPE.equals(field) && token.isScalarValue()) {
+                docType = parser.getValueAsString();
+            } else if (CALLBACK_RESULT_PROPERTIES.equals(field) && token == JsonToken.START_OBJECT) {
+                properties = readProperties(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        if (StringUtils.isBlank(docType)) {
+            return null;
+        }
+        return new ImportDecision(docType, properties == null ? null : properties.get("dc:title"), properties);
+    }
+
+    protected static Properties readProperties(JsonParser parser) throws IOException {
+
+        Properties properties = new Properties();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.VALUE_NULL) {
+                properties.put(key, null);
+            } else if (token.isScalarValue()) {
+                properties.put(key, parser.getText());
+            } else {
+                // Complex or list property: keep its JSON, as for the Properties built from a tree
+                properties.put(key, WRITER.writeValueAsString(READER.readTree(parser)));
+            }
+        }
+        return properties;
+    }
+
+    protected static ImportDecision toDecision(Map<?, ?> result) throws IOException {
+
+        Object docType = result.get(CALLBACK_RESULT_DOCTYPE);
+        if (docType == null || StringUtils.isBlank(docType.toString())) {
+            return null;
+        }
+
+        Object values = result.get(CALLBACK_RESULT_PROPERTIES);
+        Properties properties = null;
+        if (values instanceof Properties) {
+            properties = (Properties) values;
+        } else if (values instanceof Map) {
+            properties = new Properties();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) values).entrySet()) {
+                properties.put(entry.getKey().toString(), toPropertyValue(entry.getValue()));
+            }
+        }
+
+        return new ImportDecision(docType.toString(), properties == null ? null : properties.get("dc:title"),
+                properties);
+    }
+
+    protected static String toPropertyValue(Object value) throws IOException {
+
+        if (value == null || value instanceof String) {
+            return (String) value;
+        }
+        if (value instanceof Number || value instanceof Boolean) {
+            return value.toString();
+        }
+        if (value instanceof Calendar) {
+            return DateParser.formatW3CDateTime(((Calendar) value).getTime());
+        }
+        if (value instanceof Date) {
+            return DateParser.formatW3CDateTime((Date) value);
+        }
+        if (value instanceof Object[]) {
+            value = Arrays.asList((Object[]) value);
+        }
+        return WRITER.writeValueAsString(value);
+    }
+
+}
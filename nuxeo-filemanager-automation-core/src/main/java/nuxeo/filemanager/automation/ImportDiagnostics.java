@@ -0,0 +1,68 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.io.IOException;
+
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+/**
+ * Returns the statistics and the recent slow imports recorded by the {@link ImportTracer}, as JSON. Administrators
+ * only.
+ *
+ * @since 2023.1
+ */
+@Operation(id = ImportDiagnostics.ID, category = Constants.CAT_SERVICES, label = "FileManager Automation Diagnostics", description = "Returns, as JSON, the statistics of the imports (count, average and max. duration, average duration of each phase, outcomes) and the recent slow imports, with the time spent in each phase. Set reset to clear them after reading. Administrators only.")
+public class ImportDiagnostics {
+
+    public static final String ID = "FileManager.ImportDiagnostics";
+
+    @Context
+    protected CoreSession session;
+
+    @Context
+    protected FileImporterAutomationService fileImporterAutomationService;
+
+    @Param(name = "reset", required = false)
+    protected boolean reset = false;
+
+    @OperationMethod
+    public Blob run() throws IOException {
+
+        if (!session.getPrincipal().isAdministrator()) {
+            throw new NuxeoException("Only administrators can read the import diagnostics", 403);
+        }
+
+        ImportTracer tracer = fileImporterAutomationService.getTracer();
+        Blob result = Blobs.createJSONBlobFromValue(tracer.toMap());
+        if (reset) {
+            tracer.reset();
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The file pre-filters of the FileImporter, compiled once from the XML configuration. When a file does not match, the
+ * callback chain is not called at all. The parent criteria are checked by the {@link ImportRoutingTable}.
+ * <br>
+ * Empty criteria match everything.
+ *
+ * @since 2023.1
+ */
+public class ImportFilter {
+
+    protected final Set<String> mimeTypes = new HashSet<>();
+
+    protected final Pattern mimeTypePattern;
+
+    protected final Set<String> extensions = new HashSet<>();
+
+    protected final long maxSize;
+
+    public ImportFilter(Collection<String> mimeTypes, Collection<String> extensions, long maxSize) {
+
+        List<String> globs = new ArrayList<>();
+        for (String mimeType : mimeTypes) {
+            mimeType = StringUtils.trimToNull(StringUtils.lowerCase(mimeType));
+            if (mimeType == null) {
+                continue;
+            }
+            if (mimeType.indexOf('*') > -1) {
+                globs.add(globToRegex(mimeType));
+            } else {
+                this.mimeTypes.add(mimeType);
+            }
+        }
+        mimeTypePattern = globs.isEmpty() ? null : Pattern.compile(String.join("|", globs));
+
+        for (String extension : extensions) {
+            extension = StringUtils.removeStart(StringUtils.trimToEmpty(extension), ".");
+            if (!extension.isEmpty()) {
+                this.extensions.add(extension.toLowerCase());
+            }
+        }
+
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Builds the filter from the descriptor, returns null if the descriptor has no filter.
+     */
+    public static ImportFilter compile(FileImporterAutomationDescriptor descriptor) {
+        if (!descriptor.hasFilters()) {
+            return null;
+        }
+        return new ImportFilter(descriptor.getFilterMimeTypes(), descriptor.getFilterExtensions(),
+                descriptor.getFilterMaxSize());
+    }
+
+    protected static String globToRegex(String glob) {
+        String[] parts = StringUtils.splitPreserveAllTokens(glob, '*');
+        StringBuilder regex = new StringBuilder("(?:");
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                regex.append(".*");
+            }
+            if (!parts[i].isEmpty()) {
+                regex.append(Pattern.quote(parts[i]));
+            }
+        }
+        return regex.append(')').toString();
+    }
+
+    /**
+     * Checks the criteria that do not require to load the parent document.
+     */
+    public boolean acceptsFile(String mimeType, String fileName, long length) {
+
+        if (maxSize > 0 && length > maxSize) {
+            return false;
+        }
+
+        if (!mimeTypes.isEmpty() || mimeTypePattern != null) {
+            String mt = StringUtils.lowerCase(mimeType);
+            if (mt == null) {
+                return false;
+            }
+            if (!mimeTypes.contains(mt) && (mimeTypePattern == null || !mimeTypePattern.matcher(mt).matches())) {
+                return false;
+            }
+        }
+
+        if (!extensions.isEmpty()) {
+            String extension = FilenameUtils.getExtension(fileName);
+            if (extension == null || !extensions.contains(extension.toLowerCase())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import io.dropwizard.metrics5.Counter;
+import io.dropwizard.metrics5.MetricName;
+import io.dropwizard.metrics5.MetricRegistry;
+import io.dropwizard.metrics5.SharedMetricRegistries;
+import io.dropwizard.metrics5.Timer;
+
+/**
+ * The metrics of the importers, published in the Nuxeo metrics registry, so they are reported with the other Nuxeo
+ * metrics. All of them are tagged with the callback that handled the import (chain id or Java class name,
+ * {@link #NO_CALLBACK} when no callback was selected).
+ * <ul>
+ * <li>{@code nuxeo.filemanager.automation.<phase>} timers: duration of each phase of an import</li>
+ * <li>{@code nuxeo.filemanager.automation.import} counters, also tagged by {@code outcome}: number of imports per
+ * outcome</li>
+ * </ul>
+ * The phases and outcomes are also added to the {@link ImportTrace} of the current thread, if any.
+ *
+ * @since 2023.1
+ */
+public class ImportMetrics {
+
+    public static final String CHAIN_TAG = "chain";
+
+    public static final String OUTCOME_TAG = "outcome";
+
+    public static final String NO_CALLBACK = "none";
+
+    public enum Phase {
+
+        PARENT_LOOKUP("parent"), CHAIN("chain"), PARSE("parse"), PROPERTIES("properties"), CREATE("create"),
+        // Wait for the blob stored while the callback decided, see BlobWritePipeline
+        BLOB_WRITE("blobwrite"),
+        // Asynchronous, see EnrichmentWork and ListenerReplayWork
+        ENRICHMENT("enrichment"), REPLAY("replay");
+
+        protected final String metricName;
+
+        Phase(String metricName) {
+            this.metricName = metricName;
+        }
+
+    }
+
+    public enum Outcome {
+
+        // Document created by the callback
+        CREATED("created"),
+        // Existing document updated (update mode)
+        UPDATED("updated"),
+        // Same file already in the parent, nothing done (update mode)
+        UNCHANGED("unchanged"),
+        // The callback returned null (or a filter did not match) => next FileManager plugin
+        DECLINED("declined"),
+        // No Folderish created by the callback => AbstractFolderImporter
+        FALLBACK("fallback"),
+        // Properties set asynchronously on a created document, see EnrichmentWork
+        ENRICHED("enriched"),
+        // Deferred listeners run asynchronously on a created document, see ListenerReplayWork
+        REPLAYED("replayed"),
+        // Callback not called: too many concurrent calls or too many failures, see ChainGuard
+        REJECTED("rejected"),
+        // Callback still running when the timeout expired, see ChainGuard
+        TIMED_OUT("timeout"),
+        // Exception thrown
+        FAILED("failed");
+
+        protected final String tag;
+
+        Outcome(String tag) {
+            this.tag = tag;
+        }
+
+    }
+
+    protected final MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+
+    // Avoid building the metric names on every import
+    protected final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    protected final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    protected static String callback(String callbackId) {
+        return callbackId == null ? NO_CALLBACK : callbackId;
+    }
+
+    public Timer getTimer(Phase phase, String callbackId) {
+        String callback = callback(callbackId);
+        return timers.computeIfAbsent(phase.metricName + '|' + callback, k -> registry.timer(
+                MetricName.build("nuxeo", "filemanager", "automation", phase.metricName).tagged(CHAIN_TAG, callback)));
+    }
+
+    public Counter getCounter(Outcome outcome, String callbackId) {
+        String callback = callback(callbackId);
+        return counters.computeIfAbsent(outcome.tag + '|' + callback,
+                k -> registry.counter(MetricName.build("nuxeo", "filemanager", "automation", "import")
+                                                .tagged(CHAIN_TAG, callback, OUTCOME_TAG, outcome.tag)));
+    }
+
+    /**
+     * Records the duration of a phase.
+     *
+     * @param startNanos the start of the phase, from {@link System#nanoTime()}
+     * @return the end of the phase, so it can be used as the start of the next one
+     */
+    public long time(Phase phase, String callbackId, long startNanos) {
+        long now = System.nanoTime();
+        getTimer(phase, callbackId).update(now - startNanos, TimeUnit.NANOSECONDS);
+        ImportTrace trace = ImportTrace.current();
+        if (trace != null) {
+            trace.addPhase(phase, callbackId, now - startNanos);
+        }
+        return now;
+    }
+
+    public void count(Outcome outcome, String callbackId) {
+        count(outcome, callbackId, 1);
+    }
+
+    public void count(Outcome outcome, String callbackId, long n) {
+        if (n <= 0) {
+            return;
+        }
+        getCounter(outcome, callbackId).inc(n);
+        ImportTrace trace = ImportTrace.current();
+        if (trace != null) {
+            trace.addOutcome(outcome, n);
+        }
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * One line of the log written by the {@link ImportRecorder}: the inputs of an import (never the content of the file),
+ * the type of the document the callback decided to create and the duration. Serialized as one JSON object per line,
+ * read back by {@link #parse(String)} to replay the log.
+ *
+ * @since 2023.1
+ */
+public class ImportRecord {
+
+    public static final String OUTCOME_IMPORTED = "imported";
+
+    public static final String OUTCOME_DECLINED = "declined";
+
+    public static final String OUTCOME_FAILED = "failed";
+
+    protected static final ObjectMapper MAPPER = new ObjectMapper();
+
+    protected final long time;
+
+    // ImportTrace.FILE or ImportTrace.FOLDERISH
+    protected final String kind;
+
+    // The file name, or the title of the Folderish
+    protected final String name;
+
+    protected final String mimeType;
+
+    protected final long length;
+
+    protected final String parentPath;
+
+    protected final String parentType;
+
+    // Null if no document was imported
+    protected final String docType;
+
+    protected final String outcome;
+
+    protected final long durationMicros;
+
+    public ImportRecord(long time, String kind, String name, String mimeType, long length, String parentPath,
+            String parentType, String docType, String outcome, long durationMicros) {
+        this.time = time;
+        this.kind = kind;
+        this.name = name;
+        this.mimeType = mimeType;
+        this.length = length;
+        this.parentPath = parentPath;
+        this.parentType = parentType;
+        this.docType = docType;
+        this.outcome = outcome;
+        this.durationMicros = durationMicros;
+    }
+
+    /**
+     * Reads a line of the log.
+     */
+    public static ImportRecord parse(String line) {
+        try {
+            Map<?, ?> map = MAPPER.readValue(line, Map.class);
+            return new ImportRecord(toLong(map.get("time")), (String) map.get("kind"), (String) map.get("name"),
+                    (String) map.get("mimeType"), toLong(map.get("length")), (String) map.get("parentPath"),
+                    (String) map.get("parentType"), (String) map.get("docType"), (String) map.get("outcome"),
+                    toLong(map.get("durationMicros")));
+        } catch (IOException e) {
+            throw new NuxeoException("Invalid import record: " + line, e);
+        }
+    }
+
+    protected static long toLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    /**
+     * Returns the line of the log, with no line separator.
+     */
+    public String toJson() {
+        try {
+            return MAPPER.writeValueAsString(toMap());
+        } catch (IOException e) {
+            throw new NuxeoException(e);
+        }
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("time", time);
+        map.put("kind", kind);
+        map.put("name", name);
+        map.put("mimeType", mimeType);
+        map.put("length", length);
+        map.put("parentPath", parentPath);
+        map.put("parentType", parentType);
+        map.put("docType", docType);
+        map.put("outcome", outcome);
+        map.put("durationMicros", durationMicros);
+        return map;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public String getParentPath() {
+        return parentPath;
+    }
+
+    public String getParentType() {
+        return parentType;
+    }
+
+    public String getDocType() {
+        return docType;
+    }
+
+    public String getOutcome() {
+        return outcome;
+    }
+
+    public long getDurationMicros() {
+        return durationMicros;
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+
+}
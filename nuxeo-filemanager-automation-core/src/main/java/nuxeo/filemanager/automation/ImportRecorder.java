@@ -0,0 +1,179 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Appends an {@link ImportRecord} for each file and Folderish imported through the service to a JSON lines file,
+ * configured with the {@code <recorder>} element of the XML configuration. Disabled by default.
+ * <br>
+ * The records are written by a background thread, so the imports never wait for the disk: when the queue is full, the
+ * records are dropped and counted. The log can be replayed against a new callback chain, see {@code TestImportReplay}.
+ *
+ * @since 2023.1
+ */
+public class ImportRecorder {
+
+    private static final Logger log = LogManager.getLogger(ImportRecorder.class);
+
+    public static final String THREAD_NAME = "filemanager-automation-recorder";
+
+    protected final AtomicLong recorded = new AtomicLong();
+
+    protected final AtomicLong dropped = new AtomicLong();
+
+    protected volatile Writer writer;
+
+    /**
+     * Writes the records of its queue to the file, until it is stopped and the queue is empty.
+     */
+    protected class Writer implements Runnable {
+
+        protected final Path file;
+
+        protected final BlockingQueue<ImportRecord> queue;
+
+        protected final Thread thread;
+
+        protected volatile boolean stopped;
+
+        protected Writer(Path file, int queueSize) {
+            this.file = file;
+            queue = new ArrayBlockingQueue<>(Math.max(queueSize, 1));
+            thread = new Thread(this, THREAD_NAME);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try (BufferedWriter out = Files.newBufferedWriter(file, UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND)) {
+                while (!stopped || !queue.isEmpty()) {
+                    ImportRecord record = queue.poll(1, TimeUnit.SECONDS);
+                    if (record == null) {
+                        continue;
+                    }
+                    do {
+                        out.write(record.toJson());
+                        out.newLine();
+                        recorded.incrementAndGet();
+                    } while ((record = queue.poll()) != null);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                log.error("Cannot write the import records to {}, recording stopped", file, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        protected void stop() {
+            stopped = true;
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+    }
+
+    /**
+     * Applies a new configuration. The records of the previous one are written before it returns.
+     */
+    public synchronized void configure(RecorderDescriptor descriptor) {
+        Writer previous = writer;
+        writer = null;
+        if (previous != null) {
+            previous.stop();
+        }
+        if (descriptor.isEnabled()) {
+            Writer next = new Writer(getFile(descriptor), descriptor.getQueueSize());
+            next.thread.start();
+            writer = next;
+            log.info("Recording the imports to {}", next.file);
+        }
+    }
+
+    protected static Path getFile(RecorderDescriptor descriptor) {
+        if (StringUtils.isNotBlank(descriptor.getFile())) {
+            return Paths.get(descriptor.getFile().trim());
+        }
+        String dir = Framework.getProperty("nuxeo.log.dir", System.getProperty("java.io.tmpdir"));
+        return Paths.get(dir, RecorderDescriptor.DEFAULT_FILE_NAME);
+    }
+
+    public void shutdown() {
+        configure(new RecorderDescriptor());
+    }
+
+    public boolean isEnabled() {
+        return writer != null;
+    }
+
+    /**
+     * Queues the record, or drops it if the queue is full.
+     */
+    public void record(ImportRecord record) {
+        Writer current = writer;
+        if (current != null && !current.stopped && !current.queue.offer(record)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the file written, or null if recording is disabled.
+     */
+    public Path getFile() {
+        Writer current = writer;
+        return current == null ? null : current.file;
+    }
+
+    /**
+     * Returns the number of records written.
+     */
+    public long getRecorded() {
+        return recorded.get();
+    }
+
+    /**
+     * Returns the number of records dropped because the queue was full.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+}
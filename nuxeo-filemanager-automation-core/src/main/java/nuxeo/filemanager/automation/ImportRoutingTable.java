@@ -0,0 +1,232 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Index of the routing rules, built once when the configuration changes. Rules are indexed by parent path prefix (a
+ * trie of path segments), then by parent type, so selecting the rule for an import costs one lookup per level of the
+ * parent path.
+ * <br>
+ * The most specific rule wins: the deepest parent path first, then a rule scoped to the parent type before a rule for
+ * any type, then the registration order.
+ * <br>
+ * The table is never modified once built, so it can be read by the import threads without locking.
+ *
+ * @since 2023.1
+ */
+public class ImportRoutingTable {
+
+    protected static class Node {
+
+        protected final Map<String, Node> children = new HashMap<>();
+
+        protected final Map<String, List<ImportRule>> byParentType = new HashMap<>();
+
+        protected final List<ImportRule> anyParentType = new ArrayList<>();
+
+    }
+
+    protected final Node root = new Node();
+
+    protected final Map<String, ImportRule> rules = new LinkedHashMap<>();
+
+    protected final boolean hasFileRules;
+
+    protected final boolean hasFolderRules;
+
+    public ImportRoutingTable(Collection<ImportRule> rules) {
+        boolean fileRules = false;
+        boolean folderRules = false;
+        for (ImportRule rule : rules) {
+            this.rules.put(rule.getId(), rule);
+            fileRules |= rule.hasFileCallback();
+            folderRules |= rule.hasFolderCallback() || rule.hasFolderHierarchyCallback();
+            List<String> paths = rule.getParentPaths();
+            if (paths.isEmpty()) {
+                paths = Collections.singletonList("/");
+            }
+            for (String path : paths) {
+                Node node = nodeFor(path);
+                List<String> types = rule.getParentTypes();
+                if (types.isEmpty()) {
+                    node.anyParentType.add(rule);
+                } else {
+                    for (String type : types) {
+                        node.byParentType.computeIfAbsent(type.trim(), k -> new ArrayList<>()).add(rule);
+                    }
+                }
+            }
+        }
+        hasFileRules = fileRules;
+        hasFolderRules = folderRules;
+    }
+
+    protected Node nodeFor(String path) {
+        Node node = root;
+        for (String segment : path.trim().split("/")) {
+            if (!segment.isEmpty()) {
+                node = node.children.computeIfAbsent(segment, k -> new Node());
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Returns the nodes matching the path, deepest first.
+     */
+    protected List<Node> matchingNodes(String parentPath) {
+        List<Node> nodes = new ArrayList<>();
+        Node node = root;
+        nodes.add(node);
+        if (parentPath != null) {
+            for (String segment : parentPath.split("/")) {
+                if (segment.isEmpty()) {
+                    continue;
+                }
+                node = node.children.get(segment);
+                if (node == null) {
+                    break;
+                }
+                nodes.add(node);
+            }
+        }
+        Collections.reverse(nodes);
+        return nodes;
+    }
+
+    public ImportRule getRule(String id) {
+        return rules.get(id);
+    }
+
+    public Collection<ImportRule> getRules() {
+        return Collections.unmodifiableCollection(rules.values());
+    }
+
+    /**
+     * Checks, before loading the parent document, if at least one rule could handle the file.
+     */
+    public boolean mayAcceptFile(String parentPath, String mimeType, String fileName, long length) {
+        for (Node node : matchingNodes(parentPath)) {
+            for (List<ImportRule> typedRules : node.byParentType.values()) {
+                for (ImportRule rule : typedRules) {
+                    if (rule.hasFileCallback() && rule.acceptsFile(mimeType, fileName, length)) {
+                        return true;
+                    }
+                }
+            }
+            for (ImportRule rule : node.anyParentType) {
+                if (rule.hasFileCallback() && rule.acceptsFile(mimeType, fileName, length)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the rule handling the file, or null if there is none.
+     */
+    public ImportRule selectFileRule(String parentPath, String parentType, String mimeType, String fileName,
+            long length) {
+        for (Node node : matchingNodes(parentPath)) {
+            for (ImportRule rule : node.byParentType.getOrDefault(parentType, Collections.emptyList())) {
+                if (rule.hasFileCallback() && rule.acceptsFile(mimeType, fileName, length)) {
+                    return rule;
+                }
+            }
+            for (ImportRule rule : node.anyParentType) {
+                if (rule.hasFileCallback() && rule.acceptsFile(mimeType, fileName, length)) {
+                    return rule;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the rule handling the creation of a Folderish, or null if there is none.
+     */
+    public ImportRule selectFolderRule(String parentPath, String parentType) {
+        return selectRule(parentPath, parentType, ImportRule::hasFolderCallback);
+    }
+
+    /**
+     * Returns the rule handling the creation of a tree of Folderish, or null if there is none.
+     */
+    public ImportRule selectFolderHierarchyRule(String parentPath, String parentType) {
+        return selectRule(parentPath, parentType, ImportRule::hasFolderHierarchyCallback);
+    }
+
+    /**
+     * Returns the rule the imports in the parent path are reported under before the rule handling them is known (pre
+     * filters, parent lookup): the most specific rule of the path matching the predicate, whatever the parent type and
+     * the file filters. Null if there is none.
+     */
+    public ImportRule selectPathRule(String parentPath, Predicate<ImportRule> predicate) {
+        for (Node node : matchingNodes(parentPath)) {
+            for (ImportRule rule : node.anyParentType) {
+                if (predicate.test(rule)) {
+                    return rule;
+                }
+            }
+            for (List<ImportRule> typedRules : node.byParentType.values()) {
+                for (ImportRule rule : typedRules) {
+                    if (predicate.test(rule)) {
+                        return rule;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    protected ImportRule selectRule(String parentPath, String parentType, Predicate<ImportRule> predicate) {
+        for (Node node : matchingNodes(parentPath)) {
+            for (ImportRule rule : node.byParentType.getOrDefault(parentType, Collections.emptyList())) {
+                if (predicate.test(rule)) {
+                    return rule;
+                }
+            }
+            for (ImportRule rule : node.anyParentType) {
+                if (predicate.test(rule)) {
+                    return rule;
+                }
+            }
+        }
+        return null;
+    }
+
+    public boolean hasFileRules() {
+        return hasFileRules;
+    }
+
+    public boolean hasFolderRules() {
+        return hasFolderRules;
+    }
+
+}
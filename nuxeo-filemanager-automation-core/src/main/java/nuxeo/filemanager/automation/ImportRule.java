@@ -0,0 +1,443 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.VersioningOption;
+
+/**
+ * A routing rule, compiled from a {@link FileImporterAutomationDescriptor}: its scope (parent paths, parent types,
+ * file filters) and its callbacks.
+ * <br>
+ * A rule is immutable: the chain ids are resolved once, so the import threads only read final fields.
+ *
+ * @since 2023.1
+ */
+public class ImportRule {
+
+    protected final FileImporterAutomationDescriptor descriptor;
+
+    protected final ImportFilter filter;
+
+    protected final ImportDecisionCache decisionCache;
+
+    protected final FileImportDecider fileImportDecider;
+
+    protected final FolderishFactory folderishFactory;
+
+    protected final String fileChainId;
+
+    protected final String batchChainId;
+
+    protected final String folderChainId;
+
+    protected final String folderHierarchyChainId;
+
+    protected final boolean hasFileCallback;
+
+    protected final boolean hasBatchCallback;
+
+    protected final boolean hasFolderCallback;
+
+    protected final boolean hasFolderHierarchyCallback;
+
+    protected final boolean metadataInput;
+
+    protected final int headerBytes;
+
+    protected final VersioningOption versioningOption;
+
+    protected final String enrichmentChainId;
+
+    protected final String enrichmentDocType;
+
+    protected final ChainGuard guard;
+
+    protected final List<String> disabledListenerFlags = new ArrayList<>();
+
+    protected final List<String> replayEvents = new ArrayList<>();
+
+    protected final String replayChainId;
+
+    public ImportRule(FileImporterAutomationDescriptor descriptor) {
+        this.descriptor = descriptor;
+        filter = ImportFilter.compile(descriptor);
+        if (descriptor.isDecisionCacheEnabled()) {
+            decisionCache = new ImportDecisionCache(descriptor.getDecisionCacheMaxSize(),
+                    descriptor.getDecisionCacheTTL(), descriptor.getDecisionCachePerFileProperties());
+        } else {
+            decisionCache = null;
+        }
+        fileImportDecider = newInstance(descriptor.getFileImportDeciderClass());
+        folderishFactory = newInstance(descriptor.getFolderishFactoryClass());
+        fileChainId = StringUtils.trimToNull(descriptor.getChainId());
+        batchChainId = StringUtils.trimToNull(descriptor.getBatchChain());
+        folderChainId = StringUtils.trimToNull(descriptor.getFolderImporterChain());
+        folderHierarchyChainId = StringUtils.trimToNull(descriptor.getFolderHierarchyChain());
+        hasFileCallback = fileImportDecider != null || fileChainId != null;
+        hasBatchCallback = fileImportDecider != null || batchChainId != null;
+        hasFolderCallback = folderishFactory != null || folderChainId != null;
+        hasFolderHierarchyCallback = folderishFactory != null || folderHierarchyChainId != null;
+        String chainInput = StringUtils.defaultIfBlank(descriptor.getChainInput(),
+                FileImporterAutomationDescriptor.CHAIN_INPUT_BLOB).trim();
+        if (!FileImporterAutomationDescriptor.CHAIN_INPUT_BLOB.equals(chainInput)
+                && !FileImporterAutomationDescriptor.CHAIN_INPUT_METADATA.equals(chainInput)) {
+            throw new NuxeoException("Invalid chainInput <" + chainInput + "> in configuration <" + getId()
+                    + ">, expected blob or metadata");
+        }
+        metadataInput = FileImporterAutomationDescriptor.CHAIN_INPUT_METADATA.equals(chainInput);
+        headerBytes = metadataInput ? Math.max(descriptor.getHeaderBytes(), 0) : 0;
+        enrichmentChainId = StringUtils.trimToNull(descriptor.getEnrichmentChain());
+        enrichmentDocType = StringUtils.trimToNull(descriptor.getEnrichmentDocType());
+        if (enrichmentDocType != null && fileImportDecider != null) {
+            throw new NuxeoException("enrichment@docType in configuration <" + getId()
+                    + "> requires a FileImporter chain, not a FileImportDecider");
+        }
+        for (String flag : descriptor.getDisabledListenerFlags()) {
+            if (StringUtils.isNotBlank(flag)) {
+                disabledListenerFlags.add(flag.trim());
+            }
+        }
+        for (String event : descriptor.getReplayEvents()) {
+            if (StringUtils.isNotBlank(event)) {
+                replayEvents.add(event.trim());
+            }
+        }
+        replayChainId = StringUtils.trimToNull(descriptor.getReplayChain());
+        guard = new ChainGuard(getId(), descriptor.getExecutionTimeout(), descriptor.getExecutionMaxConcurrent(),
+                descriptor.getExecutionFailureThreshold(), descriptor.getExecutionOpenDuration());
+        try {
+            versioningOption = VersioningOption.valueOf(
+                    StringUtils.defaultIfBlank(descriptor.getUpdateVersioning(), "none").trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new NuxeoException("Invalid update versioning <" + descriptor.getUpdateVersioning()
+                    + "> in configuration <" + getId() + ">, expected none, minor or major", e);
+        }
+    }
+
+    protected static <T> T newInstance(Class<T> klass) {
+        if (klass == null) {
+            return null;
+        }
+        try {
+            return klass.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new NuxeoException("Cannot instantiate " + klass.getName(), e);
+        }
+    }
+
+    public String getId() {
+        return descriptor.getId();
+    }
+
+    public FileImporterAutomationDescriptor getDescriptor() {
+        return descriptor;
+    }
+
+    /**
+     * The parent paths this rule is scoped to. Empty means everywhere.
+     */
+    public List<String> getParentPaths() {
+        return descriptor.getFilterParentPaths();
+    }
+
+    /**
+     * The parent types this rule is scoped to. Empty means any type.
+     */
+    public List<String> getParentTypes() {
+        return descriptor.getFilterParentTypes();
+    }
+
+    /**
+     * Checks the file criteria (mime type, extension, size). The parent criteria are checked by the routing table.
+     */
+    public boolean acceptsFile(String mimeType, String fileName, long length) {
+        return filter == null || filter.acceptsFile(mimeType, fileName, length);
+    }
+
+    public ImportDecisionCache getDecisionCache() {
+        return decisionCache;
+    }
+
+    public FileImportDecider getFileImportDecider() {
+        return fileImportDecider;
+    }
+
+    public FolderishFactory getFolderishFactory() {
+        return folderishFactory;
+    }
+
+    /**
+     * The guard running the callbacks of the rule (timeout, bulkhead, circuit breaker). Never null, it just calls the
+     * callback when nothing is configured.
+     */
+    public ChainGuard getGuard() {
+        return guard;
+    }
+
+    /**
+     * The FileImporter chain id, null if not set.
+     */
+    public String getFileChainId() {
+        return fileChainId;
+    }
+
+    /**
+     * The batch chain id, null if not set.
+     */
+    public String getBatchChainId() {
+        return batchChainId;
+    }
+
+    /**
+     * The Folderish chain id, null if not set.
+     */
+    public String getFolderChainId() {
+        return folderChainId;
+    }
+
+    /**
+     * The Folderish hierarchy chain id, null if not set.
+     */
+    public String getFolderHierarchyChainId() {
+        return folderHierarchyChainId;
+    }
+
+    /**
+     * True if the FileImporter chain receives the metadata of the file instead of the blob.
+     */
+    public boolean isMetadataInput() {
+        return metadataInput;
+    }
+
+    /**
+     * True if the blob is stored while the FileImporter callback decides, see {@link BlobWritePipeline}.
+     */
+    public boolean isPipelinedBlobWrite() {
+        return descriptor.isPipelinedBlobWrite();
+    }
+
+    /**
+     * The min. size of the blobs stored while the callback decides.
+     */
+    public long getPipelinedBlobWriteMinSize() {
+        return Math.max(descriptor.getPipelinedBlobWriteMinSize(), 0);
+    }
+
+    /**
+     * How long, in ms, the import waits for the blob stored while the callback decided.
+     */
+    public long getPipelinedBlobWriteTimeout() {
+        return Math.max(descriptor.getPipelinedBlobWriteTimeout(), 0);
+    }
+
+    /**
+     * The blob provider the blobs are stored in while the callback decides, or null for the default provider of the
+     * repository.
+     */
+    public String getPipelinedBlobWriteProvider() {
+        return StringUtils.trimToNull(descriptor.getPipelinedBlobWriteProvider());
+    }
+
+    /**
+     * True if the documents are built from a cached prototype of their type, see {@link DocumentPrototypes}.
+     */
+    public boolean isDocumentPrototypes() {
+        return descriptor.isDocumentPrototypes();
+    }
+
+    /**
+     * Number of bytes of the beginning of the file passed to the chain with the metadata input, 0 if none.
+     */
+    public int getHeaderBytes() {
+        return headerBytes;
+    }
+
+    public boolean isUpdateByDigest() {
+        return descriptor.isUpdateByDigest();
+    }
+
+    public boolean isUpdateByName() {
+        return descriptor.isUpdateByName();
+    }
+
+    /**
+     * The versioning applied when a document is updated, {@link VersioningOption#NONE} for no version.
+     */
+    public VersioningOption getVersioningOption() {
+        return versioningOption;
+    }
+
+    /**
+     * True if the properties are set asynchronously, after the document is created.
+     */
+    public boolean isEnrichment() {
+        return descriptor.isEnrichmentEnabled();
+    }
+
+    /**
+     * The category of the enrichment works, routed to the WorkManager queue handling it.
+     */
+    public String getEnrichmentQueue() {
+        return StringUtils.defaultIfBlank(descriptor.getEnrichmentQueue(),
+                FileImporterAutomationDescriptor.DEFAULT_ENRICHMENT_QUEUE).trim();
+    }
+
+    public int getEnrichmentBatchSize() {
+        return Math.max(descriptor.getEnrichmentBatchSize(), 1);
+    }
+
+    /**
+     * The chain called by the enrichment work, null if not set.
+     */
+    public String getEnrichmentChainId() {
+        return enrichmentChainId;
+    }
+
+    /**
+     * True if, in split mode, the documents are created with {@link #getEnrichmentDocType()} without calling the
+     * FileImporter chain, then called by the enrichment work.
+     */
+    public boolean isDeferredCallback() {
+        return isEnrichment() && enrichmentDocType != null;
+    }
+
+    /**
+     * The type of the documents created before the FileImporter chain is called, null if not set.
+     */
+    public String getEnrichmentDocType() {
+        return enrichmentDocType;
+    }
+
+    /**
+     * The context data flags set on the documents created or updated by the rule, to disable listeners. Empty if none.
+     */
+    public List<String> getDisabledListenerFlags() {
+        return disabledListenerFlags;
+    }
+
+    /**
+     * True if something is to be done after the documents are created: events of disabled listeners to fire again,
+     * replay events to fire or a chain to call.
+     */
+    public boolean hasListenerReplay() {
+        return !disabledListenerFlags.isEmpty() || !replayEvents.isEmpty() || replayChainId != null;
+    }
+
+    public List<String> getReplayEvents() {
+        return replayEvents;
+    }
+
+    /**
+     * The chain called with the created documents after the events are fired, null if not set.
+     */
+    public String getReplayChainId() {
+        return replayChainId;
+    }
+
+    /**
+     * The category of the replay works, routed to the WorkManager queue handling it.
+     */
+    public String getReplayQueue() {
+        return StringUtils.defaultIfBlank(descriptor.getReplayQueue(),
+                FileImporterAutomationDescriptor.DEFAULT_REPLAY_QUEUE).trim();
+    }
+
+    public int getReplayBatchSize() {
+        return Math.max(descriptor.getReplayBatchSize(), 1);
+    }
+
+    public String getDigestAlgorithm() {
+        return StringUtils.defaultIfBlank(descriptor.getDigestAlgorithm(), "MD5");
+    }
+
+    public boolean hasFileCallback() {
+        return hasFileCallback;
+    }
+
+    public boolean hasBatchCallback() {
+        return hasBatchCallback;
+    }
+
+    public boolean hasFolderCallback() {
+        return hasFolderCallback;
+    }
+
+    /**
+     * True if the rule may handle a whole tree at once. A {@link FolderishFactory} can still decline it at run time.
+     */
+    public boolean hasFolderHierarchyCallback() {
+        return hasFolderHierarchyCallback;
+    }
+
+    /**
+     * The ids of the chains actually called by this rule (a chain replaced by a Java callback is not called).
+     */
+    public List<String> getCalledChainIds() {
+        List<String> ids = new ArrayList<>();
+        if (fileImportDecider == null && fileChainId != null) {
+            ids.add(fileChainId);
+        }
+        if (fileImportDecider == null && batchChainId != null) {
+            ids.add(batchChainId);
+        }
+        if (folderishFactory == null && folderChainId != null) {
+            ids.add(folderChainId);
+        }
+        if (folderishFactory == null && folderHierarchyChainId != null) {
+            ids.add(folderHierarchyChainId);
+        }
+        if (isEnrichment() && enrichmentChainId != null) {
+            ids.add(enrichmentChainId);
+        }
+        if (replayChainId != null) {
+            ids.add(replayChainId);
+        }
+        return ids;
+    }
+
+    /**
+     * The id of the callback used for files, for logs and error messages: the decider class or the chain id.
+     */
+    public String getFileCallbackId() {
+        return fileImportDecider != null ? fileImportDecider.getClass().getName() : fileChainId;
+    }
+
+    public String getBatchCallbackId() {
+        return fileImportDecider != null ? fileImportDecider.getClass().getName() : batchChainId;
+    }
+
+    public String getFolderCallbackId() {
+        return folderishFactory != null ? folderishFactory.getClass().getName() : folderChainId;
+    }
+
+    public String getFolderHierarchyCallbackId() {
+        return folderishFactory != null ? folderishFactory.getClass().getName() : folderHierarchyChainId;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + getId() + ")";
+    }
+
+}
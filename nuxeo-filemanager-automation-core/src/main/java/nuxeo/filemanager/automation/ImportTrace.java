@@ -0,0 +1,163 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import nuxeo.filemanager.automation.ImportMetrics.Outcome;
+import nuxeo.filemanager.automation.ImportMetrics.Phase;
+
+/**
+ * The trace of one call to the service: what was imported, the time spent in each phase, the callback and the
+ * outcome. The trace of the current thread is filled by {@link ImportMetrics}, so the importers do not have to pass it
+ * around.
+ * <br>
+ * A trace is used by one thread only.
+ *
+ * @since 2023.1
+ */
+public class ImportTrace {
+
+    public static final String FILE = "file";
+
+    public static final String BATCH = "batch";
+
+    public static final String FOLDERISH = "folderish";
+
+    public static final String HIERARCHY = "hierarchy";
+
+    protected static final ThreadLocal<ImportTrace> CURRENT = new ThreadLocal<>();
+
+    protected final String kind;
+
+    protected final String name;
+
+    protected final String parentPath;
+
+    protected final long size;
+
+    protected final long startMillis = System.currentTimeMillis();
+
+    protected final long startNanos = System.nanoTime();
+
+    protected final Map<Phase, Long> phaseNanos = new EnumMap<>(Phase.class);
+
+    protected final Map<Outcome, Long> outcomes = new EnumMap<>(Outcome.class);
+
+    protected String callbackId;
+
+    protected long durationNanos;
+
+    /**
+     * @param kind {@link #FILE}, {@link #BATCH}, {@link #FOLDERISH} or {@link #HIERARCHY}
+     * @param name the file name, or the title of the Folderish
+     * @param parentPath the path of the container
+     * @param size the size of the blob(s), or the number of documents for a hierarchy
+     */
+    public ImportTrace(String kind, String name, String parentPath, long size) {
+        this.kind = kind;
+        this.name = name;
+        this.parentPath = parentPath;
+        this.size = size;
+    }
+
+    /**
+     * Returns the trace of the current thread, or null if none is recorded.
+     */
+    public static ImportTrace current() {
+        return CURRENT.get();
+    }
+
+    protected void addPhase(Phase phase, String callbackId, long nanos) {
+        phaseNanos.merge(phase, nanos, Long::sum);
+        if (callbackId != null && phase == Phase.CHAIN) {
+            this.callbackId = callbackId;
+        }
+    }
+
+    protected void addOutcome(Outcome outcome, long count) {
+        outcomes.merge(outcome, count, Long::sum);
+    }
+
+    protected void end() {
+        durationNanos = System.nanoTime() - startNanos;
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    public String getCallbackId() {
+        return callbackId;
+    }
+
+    public long getDurationMillis() {
+        return durationNanos / 1_000_000;
+    }
+
+    public long getPhaseNanos(Phase phase) {
+        return phaseNanos.getOrDefault(phase, 0L);
+    }
+
+    public Map<Outcome, Long> getOutcomes() {
+        return outcomes;
+    }
+
+    /**
+     * The time not spent in a measured phase: the plugin itself, the FileManager, the listeners...
+     */
+    public long getOtherNanos() {
+        long other = durationNanos;
+        for (long nanos : phaseNanos.values()) {
+            other -= nanos;
+        }
+        return Math.max(other, 0);
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("kind", kind);
+        map.put("name", name);
+        map.put("parentPath", parentPath);
+        map.put("size", size);
+        map.put("callback", callbackId);
+        map.put("start", startMillis);
+        map.put("durationMillis", getDurationMillis());
+        Map<String, Object> phases = new LinkedHashMap<>();
+        for (Map.Entry<Phase, Long> phase : phaseNanos.entrySet()) {
+            phases.put(phase.getKey().metricName, phase.getValue() / 1_000_000.0);
+        }
+        phases.put("other", getOtherNanos() / 1_000_000.0);
+        map.put("phasesMillis", phases);
+        Map<String, Object> outcomeMap = new LinkedHashMap<>();
+        for (Map.Entry<Outcome, Long> outcome : outcomes.entrySet()) {
+            outcomeMap.put(outcome.getKey().tag, outcome.getValue());
+        }
+        map.put("outcomes", outcomeMap);
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+
+}
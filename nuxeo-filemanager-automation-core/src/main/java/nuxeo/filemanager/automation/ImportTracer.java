@@ -0,0 +1,198 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import nuxeo.filemanager.automation.ImportMetrics.Outcome;
+import nuxeo.filemanager.automation.ImportMetrics.Phase;
+
+/**
+ * Records an {@link ImportTrace} for each call to the service, configured with the {@code <tracing>} element of the XML
+ * configuration. Traces longer than the slow threshold are logged and kept in a bounded buffer (the most recent ones),
+ * all the traces are added to aggregate statistics. See the {@code FileManager.ImportDiagnostics} operation.
+ * <br>
+ * Disabled until a {@code <tracing enabled="true">} element is contributed.
+ *
+ * @since 2023.1
+ */
+public class ImportTracer {
+
+    private static final Logger log = LogManager.getLogger(ImportTracer.class);
+
+    protected volatile boolean enabled;
+
+    protected volatile long slowThresholdNanos = TracingDescriptor.DEFAULT_SLOW_THRESHOLD * 1_000_000;
+
+    protected volatile int bufferSize = TracingDescriptor.DEFAULT_BUFFER_SIZE;
+
+    // Guarded by itself
+    protected final Deque<ImportTrace> slowTraces = new ArrayDeque<>();
+
+    protected final LongAdder imports = new LongAdder();
+
+    protected final LongAdder slowImports = new LongAdder();
+
+    protected final LongAdder totalNanos = new LongAdder();
+
+    protected final AtomicLong maxNanos = new AtomicLong();
+
+    protected final Map<Phase, LongAdder> phaseNanos = new EnumMap<>(Phase.class);
+
+    protected final Map<Outcome, LongAdder> outcomes = new EnumMap<>(Outcome.class);
+
+    public ImportTracer() {
+        for (Phase phase : Phase.values()) {
+            phaseNanos.put(phase, new LongAdder());
+        }
+        for (Outcome outcome : Outcome.values()) {
+            outcomes.put(outcome, new LongAdder());
+        }
+    }
+
+    public void configure(TracingDescriptor descriptor) {
+        enabled = descriptor.isEnabled();
+        slowThresholdNanos = Math.max(descriptor.getSlowThreshold(), 0) * 1_000_000;
+        bufferSize = Math.max(descriptor.getBufferSize(), 0);
+        synchronized (slowTraces) {
+            while (slowTraces.size() > bufferSize) {
+                slowTraces.removeFirst();
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts the trace of the current thread. Returns null if tracing is disabled or a trace is already recorded (the
+     * call is then part of this trace).
+     */
+    public ImportTrace begin(String kind, String name, String parentPath, long size) {
+        if (!enabled || ImportTrace.CURRENT.get() != null) {
+            return null;
+        }
+        ImportTrace trace = new ImportTrace(kind, name, parentPath, size);
+        ImportTrace.CURRENT.set(trace);
+        return trace;
+    }
+
+    /**
+     * Ends the trace started by {@link #begin(String, String, String, long)}, does nothing if it is null.
+     */
+    public void end(ImportTrace trace) {
+        if (trace == null) {
+            return;
+        }
+        ImportTrace.CURRENT.remove();
+        trace.end();
+
+        imports.increment();
+        totalNanos.add(trace.durationNanos);
+        maxNanos.accumulateAndGet(trace.durationNanos, Math::max);
+        trace.phaseNanos.forEach((phase, nanos) -> phaseNanos.get(phase).add(nanos));
+        trace.outcomes.forEach((outcome, count) -> outcomes.get(outcome).add(count));
+
+        if (trace.durationNanos >= slowThresholdNanos) {
+            slowImports.increment();
+            log.warn("Slow import: {}", trace);
+            int size = bufferSize;
+            if (size > 0) {
+                synchronized (slowTraces) {
+                    slowTraces.addLast(trace);
+                    while (slowTraces.size() > size) {
+                        slowTraces.removeFirst();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the slow traces, the most recent last.
+     */
+    public List<ImportTrace> getSlowTraces() {
+        synchronized (slowTraces) {
+            return new ArrayList<>(slowTraces);
+        }
+    }
+
+    public long getImports() {
+        return imports.sum();
+    }
+
+    public long getSlowImports() {
+        return slowImports.sum();
+    }
+
+    public void reset() {
+        synchronized (slowTraces) {
+            slowTraces.clear();
+        }
+        imports.reset();
+        slowImports.reset();
+        totalNanos.reset();
+        maxNanos.set(0);
+        phaseNanos.values().forEach(LongAdder::reset);
+        outcomes.values().forEach(LongAdder::reset);
+    }
+
+    /**
+     * The statistics and the slow traces, as a map ready to be serialized as JSON.
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        long count = imports.sum();
+        map.put("enabled", enabled);
+        map.put("slowThresholdMillis", slowThresholdNanos / 1_000_000);
+        map.put("imports", count);
+        map.put("slowImports", slowImports.sum());
+        map.put("averageMillis", count == 0 ? 0 : totalNanos.sum() / count / 1_000_000.0);
+        map.put("maxMillis", maxNanos.get() / 1_000_000.0);
+        Map<String, Object> phases = new LinkedHashMap<>();
+        for (Map.Entry<Phase, LongAdder> phase : phaseNanos.entrySet()) {
+            phases.put(phase.getKey().metricName, count == 0 ? 0 : phase.getValue().sum() / count / 1_000_000.0);
+        }
+        map.put("averagePhasesMillis", phases);
+        Map<String, Object> outcomeMap = new LinkedHashMap<>();
+        for (Map.Entry<Outcome, LongAdder> outcome : outcomes.entrySet()) {
+            outcomeMap.put(outcome.getKey().tag, outcome.getValue().sum());
+        }
+        map.put("outcomes", outcomeMap);
+        List<Map<String, Object>> traces = new ArrayList<>();
+        for (ImportTrace trace : getSlowTraces()) {
+            traces.add(trace.toMap());
+        }
+        map.put("slowTraces", traces);
+        return map;
+    }
+
+}
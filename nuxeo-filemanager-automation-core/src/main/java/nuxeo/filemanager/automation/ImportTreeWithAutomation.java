@@ -0,0 +1,139 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CloseableFile;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Imports a whole folder tree in a container using a {@link FolderTreeImporter}: the input is either a zip file, or
+ * nothing and the {@code directory} parameter is a server-local directory (administrators only).
+ * <br>
+ * The workers use their own transactions: the caller's transaction is committed before they start, and a new one is
+ * started once they are done. So a chain calling this operation cannot roll back what it did before. There are at
+ * most as many workers as processors.
+ * <br>
+ * Returns a JSON blob with the report of the import.
+ *
+ * @since 2023.1
+ */
+@Operation(id = ImportTreeWithAutomation.ID, category = Constants.CAT_SERVICES, label = "Folder Tree Import with Automation", description = "Imports a folder tree in the container (path parameter, or currentDocument if not set). The tree is either the input zip file, or the server-local directory parameter (administrators only). Folders are created first, then the files are imported by several workers (workers parameter, at most the number of processors), committing every batchSize documents. The caller's transaction is committed before the import starts (its changes can no longer be rolled back) and a new one is started once it is done. Returns a JSON report (folders, files, failures, elapsedMillis, errors).")
+public class ImportTreeWithAutomation {
+
+    public static final String ID = "FileManager.ImportTreeWithAutomation";
+
+    @Context
+    protected CoreSession session;
+
+    @Context
+    protected OperationContext context;
+
+    @Param(name = "path", required = false)
+    protected String path;
+
+    @Param(name = "directory", required = false)
+    protected String directory;
+
+    @Param(name = "workers", required = false)
+    protected int workers = 4;
+
+    @Param(name = "batchSize", required = false)
+    protected int batchSize = 100;
+
+    @Param(name = "overwrite", required = false)
+    protected boolean overwrite = false;
+
+    @OperationMethod
+    public Blob run() throws IOException {
+
+        if (StringUtils.isBlank(directory)) {
+            throw new NuxeoException("No input zip and no directory parameter");
+        }
+        if (!session.getPrincipal().isAdministrator()) {
+            throw new NuxeoException("Only administrators can import a server directory", 403);
+        }
+        Path root = Paths.get(directory);
+        if (!Files.isDirectory(root)) {
+            throw new NuxeoException("Not a directory: " + directory);
+        }
+        return importTree(root);
+    }
+
+    @OperationMethod
+    public Blob run(Blob zip) throws IOException {
+
+        try (CloseableFile file = zip.getCloseableFile(".zip");
+                FileSystem zipFs = FileSystems.newFileSystem(file.getFile().toPath())) {
+            return importTree(zipFs.getPath("/"));
+        }
+    }
+
+    protected Blob importTree(Path root) throws IOException {
+
+        String parentPath = path;
+        if (StringUtils.isBlank(parentPath)) {
+            DocumentModel currentDocument = (DocumentModel) context.get("currentDocument");
+            if (currentDocument == null) {
+                throw new NuxeoException("No path parameter and no currentDocument in the context");
+            }
+            parentPath = currentDocument.getPathAsString();
+        }
+
+        // Each worker holds a thread and a repository connection
+        int maxWorkers = Math.min(workers, Runtime.getRuntime().availableProcessors());
+        FolderTreeImporter importer = new FolderTreeImporter(session.getRepositoryName(), session.getPrincipal(),
+                maxWorkers, batchSize, overwrite);
+
+        // So the workers see the changes of the caller, and do not wait for its locks
+        boolean inTransaction = TransactionHelper.isTransactionActiveOrMarkedRollback();
+        if (inTransaction) {
+            session.save();
+            TransactionHelper.commitOrRollbackTransaction();
+        }
+        TreeImportReport report;
+        try {
+            report = importer.run(root, parentPath);
+        } finally {
+            if (inTransaction) {
+                TransactionHelper.startTransaction();
+            }
+        }
+        return Blobs.createJSONBlobFromValue(report.toMap());
+    }
+
+}
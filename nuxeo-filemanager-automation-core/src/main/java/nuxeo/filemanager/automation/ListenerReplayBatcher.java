@@ -0,0 +1,87 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.runtime.api.Framework;
+
+import nuxeo.filemanager.automation.ListenerReplayWork.Replay;
+
+/**
+ * Collects the documents imported with listeners disabled during a transaction, and schedules them once it is
+ * committed, in {@link ListenerReplayWork}s of {@code batchSize} documents imported by a same user. Nothing is
+ * scheduled if the transaction is rolled back. Outside of a transaction, the work is scheduled right away.
+ *
+ * @since 2023.1
+ */
+public class ListenerReplayBatcher {
+
+    // repository => user => rule => documents
+    protected final TransactionLocal<Map<String, Map<String, Map<ImportRule, List<Replay>>>>> pending =
+            new TransactionLocal<>(HashMap::new, this::schedule);
+
+    /**
+     * Fires again the events of the disabled listeners, fires the replay events and calls the replay chain of the rule
+     * on the document once the current transaction is committed, as the user of the session.
+     *
+     * @param created true if the document was created, false if it was updated
+     */
+    public void add(ImportRule rule, CoreSession session, DocumentModel doc, boolean created) {
+        Replay replay = new Replay(doc.getId(), created);
+        String username = session.getPrincipal().getName();
+        Map<String, Map<String, Map<ImportRule, List<Replay>>>> replays = pending.get();
+        if (replays == null) {
+            schedule(doc.getRepositoryName(), username, rule, List.of(replay));
+            return;
+        }
+        replays.computeIfAbsent(doc.getRepositoryName(), k -> new HashMap<>())
+               .computeIfAbsent(username, k -> new LinkedHashMap<>())
+               .computeIfAbsent(rule, k -> new ArrayList<>())
+               .add(replay);
+    }
+
+    protected void schedule(Map<String, Map<String, Map<ImportRule, List<Replay>>>> replays) {
+        for (Map.Entry<String, Map<String, Map<ImportRule, List<Replay>>>> byRepository : replays.entrySet()) {
+            for (Map.Entry<String, Map<ImportRule, List<Replay>>> byUser : byRepository.getValue().entrySet()) {
+                for (Map.Entry<ImportRule, List<Replay>> byRule : byUser.getValue().entrySet()) {
+                    schedule(byRepository.getKey(), byUser.getKey(), byRule.getKey(), byRule.getValue());
+                }
+            }
+        }
+    }
+
+    protected void schedule(String repositoryName, String username, ImportRule rule, List<Replay> replays) {
+        WorkManager workManager = Framework.getService(WorkManager.class);
+        int batchSize = rule.getReplayBatchSize();
+        for (int i = 0; i < replays.size(); i += batchSize) {
+            workManager.schedule(new ListenerReplayWork(repositoryName, rule.getReplayQueue(), username,
+                    rule.getDisabledListenerFlags(), rule.getReplayEvents(), rule.getReplayChainId(),
+                    replays.subList(i, Math.min(i + batchSize, replays.size()))));
+        }
+    }
+
+}
@@ -0,0 +1,223 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.ecm.automation.AutomationService;
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.OperationException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.VersioningOption;
+import org.nuxeo.ecm.core.api.event.CoreEventConstants;
+import org.nuxeo.ecm.core.api.event.DocumentEventCategories;
+import org.nuxeo.ecm.core.api.event.DocumentEventTypes;
+import org.nuxeo.ecm.core.api.impl.DocumentModelListImpl;
+import org.nuxeo.ecm.core.api.versioning.VersioningService;
+import org.nuxeo.ecm.core.event.EventService;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+import org.nuxeo.ecm.core.work.AbstractWork;
+import org.nuxeo.runtime.api.Framework;
+
+import nuxeo.filemanager.automation.ImportMetrics.Outcome;
+import nuxeo.filemanager.automation.ImportMetrics.Phase;
+
+/**
+ * Bulk import mode (see {@code <listeners>} in the XML configuration): once the import is committed, runs,
+ * asynchronously and as the user who imported the documents, what the import did not run:
+ * <ul>
+ * <li>if listeners were disabled, the events of the creation (or of the update) of each document are fired again,
+ * so that these listeners set the Dublin Core fields, log the audit entries, send the notifications, ... What the
+ * synchronous listeners change is saved with the same listeners disabled, so that they do not run twice</li>
+ * <li>then each replay event is fired on each document</li>
+ * <li>then the optional replay chain is called once, with the list of documents as input</li>
+ * </ul>
+ * The events are dated when the work runs, not when the document was imported. The documents deleted in the meantime
+ * are skipped. A failing document is logged and skipped, the other documents of the work are handled anyway.
+ *
+ * @since 2023.1
+ */
+public class ListenerReplayWork extends AbstractWork {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger log = LogManager.getLogger(ListenerReplayWork.class);
+
+    public static final String TITLE = "FileManager Automation Listener Replay";
+
+    /**
+     * A document imported with listeners disabled.
+     */
+    public static class Replay implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final String docId;
+
+        protected final boolean created;
+
+        /**
+         * @param created true if the document was created by the import, false if it was updated
+         */
+        public Replay(String docId, boolean created) {
+            this.docId = docId;
+            this.created = created;
+        }
+
+        public String getDocId() {
+            return docId;
+        }
+
+        public boolean isCreated() {
+            return created;
+        }
+
+    }
+
+    protected final String category;
+
+    protected final ArrayList<String> disabledListenerFlags;
+
+    protected final ArrayList<String> events;
+
+    protected final String chainId;
+
+    protected final ArrayList<Replay> replays;
+
+    /**
+     * @param category the category of the work, routed to the queue handling it
+     * @param username the user who imported the documents
+     * @param disabledListenerFlags the context data flags set on the documents by the import, can be empty
+     * @param events the events to fire on each document, can be empty
+     * @param chainId the chain to call with the documents, can be null
+     */
+    public ListenerReplayWork(String repositoryName, String category, String username,
+            List<String> disabledListenerFlags, List<String> events, String chainId, List<Replay> replays) {
+        this.category = category;
+        this.disabledListenerFlags = new ArrayList<>(disabledListenerFlags);
+        this.events = new ArrayList<>(events);
+        this.chainId = chainId;
+        this.replays = new ArrayList<>(replays);
+        List<String> docIds = new ArrayList<>(replays.size());
+        for (Replay replay : replays) {
+            docIds.add(replay.getDocId());
+        }
+        setDocuments(repositoryName, docIds);
+        setOriginatingUsername(username);
+    }
+
+    @Override
+    public String getCategory() {
+        return category;
+    }
+
+    @Override
+    public String getTitle() {
+        return TITLE;
+    }
+
+    public List<String> getEvents() {
+        return events;
+    }
+
+    public List<Replay> getReplays() {
+        return replays;
+    }
+
+    @Override
+    public void work() {
+        openUserSession();
+        ImportMetrics metrics = Framework.getService(FileImporterAutomationService.class).getMetrics();
+        EventService eventService = Framework.getService(EventService.class);
+        String callbackId = chainId;
+        long start = System.nanoTime();
+
+        DocumentModelList docs = new DocumentModelListImpl();
+        setProgress(new Progress(0, replays.size()));
+        for (Replay replay : replays) {
+            IdRef ref = new IdRef(replay.docId);
+            if (!session.exists(ref)) {
+                continue;
+            }
+            DocumentModel doc = session.getDocument(ref);
+            try {
+                if (!disabledListenerFlags.isEmpty()) {
+                    doc = replayStandardEvents(eventService, doc, replay.created);
+                }
+                for (String event : events) {
+                    fireEvent(eventService, doc, event);
+                }
+                docs.add(doc);
+            } catch (NuxeoException e) {
+                log.warn("Failed to replay the events {} on document {}", events, replay.docId, e);
+                metrics.count(Outcome.FAILED, callbackId);
+            }
+            setProgress(new Progress(docs.size(), replays.size()));
+        }
+
+        if (chainId != null && !docs.isEmpty()) {
+            OperationContext octx = new OperationContext(session);
+            octx.setInput(docs);
+            try {
+                Framework.getService(AutomationService.class).run(octx, chainId);
+            } catch (OperationException e) {
+                metrics.count(Outcome.FAILED, callbackId);
+                throw new NuxeoException("Failed to run the replay chain <" + chainId + ">", e);
+            }
+        }
+        metrics.count(Outcome.REPLAYED, callbackId, docs.size());
+        metrics.time(Phase.REPLAY, callbackId, start);
+    }
+
+    /**
+     * Fires the events of the creation, or of the update, of the document, as the repository does when it is saved.
+     * The document is saved in between with the disabled listeners still disabled, as they handled the first event.
+     *
+     * @return the saved document
+     */
+    protected DocumentModel replayStandardEvents(EventService eventService, DocumentModel doc, boolean created) {
+        fireEvent(eventService, doc,
+                created ? DocumentEventTypes.ABOUT_TO_CREATE : DocumentEventTypes.BEFORE_DOC_UPDATE);
+        for (String flag : disabledListenerFlags) {
+            doc.putContextData(flag, Boolean.TRUE);
+        }
+        doc.putContextData(VersioningService.VERSIONING_OPTION, VersioningOption.NONE);
+        session.saveDocument(doc);
+        // Without the context data of the save
+        doc = session.getDocument(doc.getRef());
+        fireEvent(eventService, doc,
+                created ? DocumentEventTypes.DOCUMENT_CREATED : DocumentEventTypes.DOCUMENT_UPDATED);
+        return doc;
+    }
+
+    protected void fireEvent(EventService eventService, DocumentModel doc, String event) {
+        DocumentEventContext ctx = new DocumentEventContext(session, session.getPrincipal(), doc);
+        ctx.setCategory(DocumentEventCategories.EVENT_DOCUMENT_CATEGORY);
+        ctx.setProperty(CoreEventConstants.REPOSITORY_NAME, session.getRepositoryName());
+        eventService.fireEvent(ctx.newEvent(event));
+    }
+
+}
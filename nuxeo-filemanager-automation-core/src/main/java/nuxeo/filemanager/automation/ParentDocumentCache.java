@@ -0,0 +1,105 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.PathRef;
+
+/**
+ * Transaction-scoped cache of the parent documents used by the importers: when a folder tree is dropped, the same
+ * parents are resolved once per transaction instead of once per file. The cache of a transaction is dropped at commit
+ * or rollback. Outside of a transaction, nothing is cached.
+ * <br>
+ * Documents are cached per repository and per user, so permissions checked when fetching them still apply.
+ *
+ * @since 2023.1
+ */
+public class ParentDocumentCache {
+
+    protected final TransactionLocal<Map<String, DocumentModel>> documents = new TransactionLocal<>(HashMap::new);
+
+    protected final AtomicLong roundTripsSaved = new AtomicLong();
+
+    protected final AtomicLong fetches = new AtomicLong();
+
+    protected static String key(CoreSession session, String path) {
+        return session.getRepositoryName() + ':' + session.getPrincipal().getName() + ':' + normalizePath(path);
+    }
+
+    protected static String normalizePath(String path) {
+        if (path.length() > 1 && path.endsWith("/")) {
+            return path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    /**
+     * Returns the document at {@code path}, fetching it from the repository only once per transaction.
+     */
+    public DocumentModel getDocument(CoreSession session, String path) {
+
+        Map<String, DocumentModel> docs = documents.get();
+        if (docs == null) {
+            fetches.incrementAndGet();
+            return session.getDocument(new PathRef(path));
+        }
+
+        String key = key(session, path);
+        DocumentModel doc = docs.get(key);
+        if (doc != null) {
+            roundTripsSaved.incrementAndGet();
+            return doc;
+        }
+
+        fetches.incrementAndGet();
+        doc = session.getDocument(new PathRef(path));
+        docs.put(key, doc);
+        return doc;
+    }
+
+    /**
+     * Adds a document that was just created, typically a Folderish, so the files imported in it do not fetch it again.
+     */
+    public void put(CoreSession session, DocumentModel doc) {
+        Map<String, DocumentModel> docs = documents.get();
+        if (docs != null && doc != null) {
+            docs.put(key(session, doc.getPathAsString()), doc);
+        }
+    }
+
+    /**
+     * Returns the number of repository calls avoided by the cache.
+     */
+    public long getRoundTripsSaved() {
+        return roundTripsSaved.get();
+    }
+
+    /**
+     * Returns the number of documents actually fetched from the repository.
+     */
+    public long getFetches() {
+        return fetches.get();
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * Global configuration of the {@link ImportRecorder}, contributed to the {@code configuration} extension point:
+ *
+ * <pre>
+ * &lt;recorder enabled="true" file="/var/log/nuxeo/filemanager-automation-imports.jsonl" queueSize="10000" /&gt;
+ * </pre>
+ *
+ * The last contribution wins.
+ *
+ * @since 2023.1
+ */
+@XObject("recorder")
+public class RecorderDescriptor {
+
+    public static final String DEFAULT_FILE_NAME = "filemanager-automation-imports.jsonl";
+
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+    @XNode("@enabled")
+    protected boolean enabled;
+
+    // Optional, default is DEFAULT_FILE_NAME in the log directory
+    @XNode("@file")
+    protected String file;
+
+    // Max. number of records waiting to be written. When reached, new records are dropped
+    @XNode("@queueSize")
+    protected int queueSize = DEFAULT_QUEUE_SIZE;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * Global configuration of the {@link ImportTracer}, contributed to the {@code configuration} extension point:
+ *
+ * <pre>
+ * &lt;tracing enabled="true" slowThreshold="1000" bufferSize="100" /&gt;
+ * </pre>
+ *
+ * The last contribution wins.
+ *
+ * @since 2023.1
+ */
+@XObject("tracing")
+public class TracingDescriptor {
+
+    // In ms
+    public static final long DEFAULT_SLOW_THRESHOLD = 1000;
+
+    public static final int DEFAULT_BUFFER_SIZE = 100;
+
+    // Disabled by default: tracing costs on every import, and logs every slow import
+    @XNode("@enabled")
+    protected boolean enabled;
+
+    // Imports taking longer are logged and kept in the buffer, in ms
+    @XNode("@slowThreshold")
+    protected long slowThreshold = DEFAULT_SLOW_THRESHOLD;
+
+    // Max. number of slow traces kept
+    @XNode("@bufferSize")
+    protected int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getSlowThreshold() {
+        return slowThreshold;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+}
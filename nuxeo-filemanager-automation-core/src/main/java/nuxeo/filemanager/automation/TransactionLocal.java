@@ -0,0 +1,87 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * A value bound to the current transaction: created on first use in a transaction, dropped at commit or rollback.
+ * Outside of a transaction, there is no value.
+ *
+ * @since 2023.1
+ */
+public class TransactionLocal<T> {
+
+    // One transaction per thread => the value of the current transaction is bound to the thread
+    protected final ThreadLocal<T> values = new ThreadLocal<>();
+
+    protected final Supplier<T> initialValue;
+
+    protected final Consumer<T> afterCommit;
+
+    public TransactionLocal(Supplier<T> initialValue) {
+        this(initialValue, null);
+    }
+
+    /**
+     * @param afterCommit called with the value of a transaction once it is committed (not when it is rolled back)
+     */
+    public TransactionLocal(Supplier<T> initialValue, Consumer<T> afterCommit) {
+        this.initialValue = initialValue;
+        this.afterCommit = afterCommit;
+    }
+
+    /**
+     * Returns the value of the current transaction, creating it if needed, or null if there is no transaction.
+     */
+    public T get() {
+        if (!TransactionHelper.isTransactionActive()) {
+            return null;
+        }
+        T value = values.get();
+        if (value == null) {
+            value = initialValue.get();
+            values.set(value);
+            TransactionHelper.registerSynchronization(new Synchronization() {
+
+                @Override
+                public void beforeCompletion() {
+                    // nothing
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    T committed = values.get();
+                    values.remove();
+                    if (afterCommit != null && status == Status.STATUS_COMMITTED) {
+                        afterCommit.accept(committed);
+                    }
+                }
+            });
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress and result of a {@link FolderTreeImporter} run. Thread safe, updated by the workers.
+ *
+ * @since 2023.1
+ */
+public class TreeImportReport {
+
+    // Keep the report small on huge imports
+    public static final int MAX_ERRORS = 100;
+
+    protected final AtomicLong folders = new AtomicLong();
+
+    protected final AtomicLong files = new AtomicLong();
+
+    protected final AtomicLong failures = new AtomicLong();
+
+    protected final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+
+    protected final long start = System.currentTimeMillis();
+
+    protected volatile long end;
+
+    public void folderImported() {
+        folders.incrementAndGet();
+    }
+
+    public void fileImported() {
+        files.incrementAndGet();
+    }
+
+    public void failed(String relativePath, Exception e) {
+        failures.incrementAndGet();
+        if (errors.size() < MAX_ERRORS) {
+            errors.add(relativePath + ": " + e.getMessage());
+        }
+    }
+
+    public void done() {
+        end = System.currentTimeMillis();
+    }
+
+    public long getFolders() {
+        return folders.get();
+    }
+
+    public long getFiles() {
+        return files.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * The first {@link #MAX_ERRORS} errors, as "relative path: message".
+     */
+    public List<String> getErrors() {
+        synchronized (errors) {
+            return new ArrayList<>(errors);
+        }
+    }
+
+    public long getElapsedMillis() {
+        return (end > 0 ? end : System.currentTimeMillis()) - start;
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("folders", getFolders());
+        map.put("files", getFiles());
+        map.put("failures", getFailures());
+        map.put("elapsedMillis", getElapsedMillis());
+        map.put("errors", getErrors());
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d folders, %d files, %d failures in %dms", getFolders(), getFiles(), getFailures(),
+                getElapsedMillis());
+    }
+
+}
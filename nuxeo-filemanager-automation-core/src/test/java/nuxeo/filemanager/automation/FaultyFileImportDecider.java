@@ -0,0 +1,47 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.platform.filemanager.api.FileImporterContext;
+
+/**
+ * Hangs on "slow*" files, fails on "fail*" files, creates a File otherwise.
+ */
+public class FaultyFileImportDecider implements FileImportDecider {
+
+    @Override
+    public ImportDecision decide(FileImporterContext context, DocumentModel parentDoc) {
+
+        String fileName = context.getBlob().getFilename();
+        if (fileName.startsWith("slow")) {
+            try {
+                Thread.sleep(2_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NuxeoException(e);
+            }
+        } else if (fileName.startsWith("fail")) {
+            throw new NuxeoException("Failing on purpose");
+        }
+        return new ImportDecision("File", null);
+    }
+
+}
@@ -0,0 +1,45 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.platform.filemanager.api.FileImporterContext;
+
+/**
+ * Creates a Section with a description in a SectionRoot, does nothing elsewhere.
+ */
+public class SectionFileImportDecider implements FileImportDecider {
+
+    @Override
+    public ImportDecision decide(FileImporterContext context, DocumentModel parentDoc) {
+
+        if (!"SectionRoot".equals(parentDoc.getType())) {
+            return null;
+        }
+
+        Map<String, Serializable> values = new HashMap<>();
+        values.put("dc:description", "FROM JAVA");
+        return new ImportDecision("Section", values);
+    }
+
+}
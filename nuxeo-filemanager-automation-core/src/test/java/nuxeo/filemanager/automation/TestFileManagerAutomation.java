@@ -18,30 +18,56 @@
  */
 package nuxeo.filemanager.automation;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.automation.AutomationService;
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.core.util.BlobList;
 import org.nuxeo.ecm.automation.test.AutomationFeature;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.Blobs;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.DocumentRef;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.PathRef;
 import org.nuxeo.ecm.core.test.DefaultRepositoryInit;
 import org.nuxeo.ecm.core.test.annotations.Granularity;
 import org.nuxeo.ecm.core.test.annotations.RepositoryConfig;
+import org.nuxeo.ecm.core.work.api.WorkManager;
 import org.nuxeo.ecm.platform.filemanager.api.FileImporterContext;
+import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.test.runner.Deploy;
 import org.nuxeo.runtime.test.runner.Features;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.HotDeployer;
+import org.nuxeo.runtime.transaction.TransactionHelper;
 
 @RunWith(FeaturesRunner.class)
 @Features(AutomationFeature.class)
@@ -59,6 +85,12 @@ public class TestFileManagerAutomation {
     @Inject
     protected FileImporterAutomationService fileManagerAutomation;
 
+    @Inject
+    protected AutomationService automationService;
+
+    @Inject
+    protected HotDeployer hotDeployer;
+
     protected DocumentModel folder;
 
     protected DocumentModel sectionRoot;
@@ -75,6 +107,12 @@ public class TestFileManagerAutomation {
         coreSession.save();
     }
 
+    protected void nextTransaction() {
+        coreSession.save();
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+    }
+
     protected FileImporterContext buildContextForTestFile(DocumentModel parent) throws Exception {
 
         File f = FileUtils.getResourceFileFromContext(TEST_FILE);
@@ -105,6 +143,81 @@ public class TestFileManagerAutomation {
 
     }
 
+    @Test
+    @Deploy("org.nuxeo.ecm.automation.scripting")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-return-a-section.xml")
+    public void testCreateOrUpdateAsync() throws Exception {
+
+        // The async imports run in their own transactions: the parents must be committed
+        nextTransaction();
+
+        List<CompletableFuture<DocumentRef>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(fileManagerAutomation.createOrUpdateAsync(buildContextForTestFile(sectionRoot)));
+        }
+        CompletableFuture<DocumentRef> declined = fileManagerAutomation.createOrUpdateAsync(
+                buildContextForTestFile(folder));
+
+        for (CompletableFuture<DocumentRef> future : futures) {
+            DocumentRef ref = future.get(20, TimeUnit.SECONDS);
+            assertNotNull(ref);
+            assertEquals("Section", coreSession.getDocument(ref).getType());
+        }
+        assertNull(declined.get(20, TimeUnit.SECONDS));
+    }
+
+    @Test
+    @Deploy("org.nuxeo.ecm.automation.scripting")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-return-a-section.xml")
+    public void testMetrics() throws Exception {
+
+        ImportMetrics metrics = fileManagerAutomation.getMetrics();
+        String chainId = "javascript.testReturnSection";
+        long created = metrics.getCounter(ImportMetrics.Outcome.CREATED, chainId).getCount();
+        long declined = metrics.getCounter(ImportMetrics.Outcome.DECLINED, chainId).getCount();
+        long chainCalls = metrics.getTimer(ImportMetrics.Phase.CHAIN, chainId).getCount();
+
+        assertNotNull(fileManagerAutomation.createOrUpdate(buildContextForTestFile(sectionRoot)));
+        assertNull(fileManagerAutomation.createOrUpdate(buildContextForTestFile(folder)));
+
+        assertEquals(created + 1, metrics.getCounter(ImportMetrics.Outcome.CREATED, chainId).getCount());
+        assertEquals(declined + 1, metrics.getCounter(ImportMetrics.Outcome.DECLINED, chainId).getCount());
+        assertEquals(chainCalls + 2, metrics.getTimer(ImportMetrics.Phase.CHAIN, chainId).getCount());
+
+    }
+
+    @Test
+    @Deploy("org.nuxeo.ecm.automation.scripting")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-return-a-section.xml")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-tracing.xml")
+    public void testTracing() throws Exception {
+
+        ImportTracer tracer = fileManagerAutomation.getTracer();
+        tracer.reset();
+
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(fileManagerAutomation.createOrUpdate(buildContextForTestFile(sectionRoot)));
+        }
+
+        // Bounded buffer: the last 2 only
+        List<ImportTrace> traces = tracer.getSlowTraces();
+        assertEquals(2, traces.size());
+        ImportTrace trace = traces.get(1);
+        assertEquals(ImportTrace.FILE, trace.getKind());
+        assertEquals("javascript.testReturnSection", trace.getCallbackId());
+        assertEquals(Long.valueOf(1), trace.getOutcomes().get(ImportMetrics.Outcome.CREATED));
+        assertTrue(trace.getPhaseNanos(ImportMetrics.Phase.CHAIN) > 0);
+
+        OperationContext ctx = new OperationContext(coreSession);
+        Map<String, Object> params = new HashMap<>();
+        params.put("reset", true);
+        String json = ((Blob) automationService.run(ctx, ImportDiagnostics.ID, params)).getString();
+        assertTrue(json, json.contains("\"imports\":3"));
+        assertTrue(json, json.contains("\"slowTraces\":[{"));
+        assertEquals(0, tracer.getImports());
+        assertTrue(tracer.getSlowTraces().isEmpty());
+    }
+
     @Test
     @Deploy("org.nuxeo.ecm.automation.scripting")
     @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-return-a-section-with-properties.xml")
@@ -124,6 +237,631 @@ public class TestFileManagerAutomation {
 
     }
 
+    @Test
+    @Deploy("org.nuxeo.ecm.automation.scripting")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-document-prototypes.xml")
+    public void testDocumentPrototypes() throws Exception {
+
+        DocumentPrototypes prototypes = fileManagerAutomation.getDocumentPrototypes();
+        long misses = prototypes.getMisses();
+
+        for (int i = 0; i < 3; i++) {
+            Blob blob = Blobs.createBlob("file " + i, "text/plain", null, "file-" + i + ".txt");
+            DocumentModel doc = fileManagerAutomation.createOrUpdate(
+                    FileImporterContext.builder(coreSession, blob, folder.getPathAsString()).build());
+            assertEquals("File", doc.getType());
+            assertEquals("file-" + i + ".txt", doc.getTitle());
+            assertEquals(folder.getPathAsString() + "/" + doc.getName(), doc.getPathAsString());
+            assertNotNull(doc.getPropertyValue("file:content"));
+            // Compiled setter, and generic setter for the list
+            assertEquals("THE DESC", doc.getPropertyValue("dc:description"));
+            assertArrayEquals(new String[] { "art", "sciences" }, (Object[]) doc.getPropertyValue("dc:subjects"));
+        }
+
+        // One prototype for the File type, built for the first file only
+        assertEquals(1, prototypes.size());
+        assertEquals(misses + 1, prototypes.getMisses());
+
+        // Another prototype in a parent of another type
+        DocumentModel workspace = coreSession.createDocumentModel("/", "workspace", "Workspace");
+        workspace = coreSession.createDocument(workspace);
+        Blob blob = Blobs.createBlob("file", "text/plain", null, "file.txt");
+        DocumentModel doc = fileManagerAutomation.createOrUpdate(
+                FileImporterContext.builder(coreSession, blob, workspace.getPathAsString()).build());
+        assertEquals(workspace.getPathAsString() + "/" + doc.getName(), doc.getPathAsString());
+        assertEquals("THE DESC", doc.getPropertyValue("dc:description"));
+        assertEquals(2, prototypes.size());
+        assertEquals(misses + 2, prototypes.getMisses());
+    }
+
+    @Test
+    @Deploy("org.nuxeo.ecm.automation.scripting")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-return-a-section-as-object.xml")
+    public void testCreateWithPropertiesAsObject() throws Exception {
+
+        FileImporterContext context = buildContextForTestFile(sectionRoot);
+
+        // Same as testCreateWithProperties, but the chain returns an object, not a JSON string
+        DocumentModel doc = fileManagerAutomation.createOrUpdate(context);
+        assertNotNull(doc);
+        assertEquals("Section", doc.getType());
+        assertEquals("THE TITLE", doc.getTitle());
+        assertEquals("THE DESC", doc.getPropertyValue("dc:description"));
+
+    }
+
+    @Test
+    @Deploy("org.nuxeo.ecm.automation.scripting")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-decision-cache.xml")
+    public void testDecisionCache() throws Exception {
+
+        ImportDecisionCache cache = fileManagerAutomation.getDecisionCache();
+        assertNotNull(cache);
+
+        // First call runs the chain, second one uses the cache
+        DocumentModel doc = fileManagerAutomation.createOrUpdate(buildContext(sectionRoot, "first.pdf"));
+        assertEquals("Section", doc.getType());
+        assertEquals("Section first.pdf", doc.getTitle());
+        assertEquals("Imported from first.pdf", doc.getPropertyValue("dc:description"));
+        assertEquals("Rights of the 9 chars file", doc.getPropertyValue("dc:rights"));
+        assertEquals("decision cache", doc.getPropertyValue("dc:source"));
+        doc = fileManagerAutomation.createOrUpdate(buildContext(sectionRoot, "other-name.pdf"));
+        assertEquals("Section", doc.getType());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+
+        // Only what does not depend on the file is reused
+        assertEquals("other-name.pdf", doc.getTitle());
+        assertNull(doc.getPropertyValue("dc:description"));
+        assertNull(doc.getPropertyValue("dc:rights"));
+        assertEquals("decision cache", doc.getPropertyValue("dc:source"));
+
+        // "Do nothing" is cached too
+        assertNull(fileManagerAutomation.createOrUpdate(buildContextForTestFile(folder)));
+        assertNull(fileManagerAutomation.createOrUpdate(buildContextForTestFile(folder)));
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.size());
+
+    }
+
+    @Test
+    @Deploy("org.nuxeo.ecm.automation.scripting")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-return-a-section.xml")
+    public void testParentIsFetchedOncePerTransaction() throws Exception {
+
+        ParentDocumentCache cache = fileManagerAutomation.getParentDocumentCache();
+        long saved = cache.getRoundTripsSaved();
+
+        for (int i = 0; i < 3; i++) {
+            DocumentModel doc = fileManagerAutomation.createOrUpdate(buildContextForTestFile(sectionRoot));
+            assertEquals("Section", doc.getType());
+        }
+        assertEquals(saved + 2, cache.getRoundTripsSaved());
+
+    }
+
+    @Test
+    @Deploy("org.nuxeo.ecm.automation.scripting")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-filters.xml")
+    public void testFilters() throws Exception {
+
+        ImportMetrics metrics = fileManagerAutomation.getMetrics();
+        String chainId = "javascript.testReturnSection";
+        long declined = metrics.getCounter(ImportMetrics.Outcome.DECLINED, chainId).getCount();
+        long chainCalls = metrics.getTimer(ImportMetrics.Phase.CHAIN, chainId).getCount();
+
+        // The chain would return a Section, but a pdf does not match the filters
+        assertNull(fileManagerAutomation.createOrUpdate(buildContextForTestFile(sectionRoot)));
+        // Declined by the filters of the rule of the path, without calling the chain
+        assertEquals(declined + 1, metrics.getCounter(ImportMetrics.Outcome.DECLINED, chainId).getCount());
+        assertEquals(chainCalls, metrics.getTimer(ImportMetrics.Phase.CHAIN, chainId).getCount());
+
+        Blob image = Blobs.createBlob("not really an image", "image/jpeg", null, "image.JPG");
+        FileImporterContext context = FileImporterContext.builder(coreSession, image, sectionRoot.getPathAsString())
+                                                         .build();
+        DocumentModel doc = fileManagerAutomation.createOrUpdate(context);
+        assertNotNull(doc);
+        assertEquals("Section", doc.getType());
+
+        // Not in the parentPath
+        context = FileImporterContext.builder(coreSession, image, folder.getPathAsString()).build();
+        assertNull(fileManagerAutomation.createOrUpdate(context));
+
+    }
+
+    @Test
+    @Deploy("org.nuxeo.ecm.automation.scripting")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-routing-rules.xml")
+    public void testRoutingRules() throws Exception {
+
+        DocumentModel doc = fileManagerAutomation.createOrUpdate(buildContextForTestFile(sectionRoot));
+        assertNotNull(doc);
+        assertEquals("Section", doc.getType());
+
+        doc = fileManagerAutomation.createOrUpdate(buildContextForTestFile(folder));
+        assertNotNull(doc);
+        assertEquals("File", doc.getType());
+        assertEquals("FROM TEST RULE", doc.getPropertyValue("dc:description"));
+
+        // In /test, but the "test-folder" rule handles only pdf files
+        Blob text = Blobs.createBlob("some text", "text/plain", null, "notes.txt");
+        FileImporterContext context = FileImporterContext.builder(coreSession, text, folder.getPathAsString()).build();
+        assertNull(fileManagerAutomation.createOrUpdate(context));
+
+        // No rule for this parent
+        DocumentModel other = coreSession.createDocument(coreSession.createDocumentModel("/", "other", "Folder"));
+        assertNull(fileManagerAutomation.createOrUpdate(buildContextForTestFile(other)));
+
+    }
+
+    @Test
+    @Deploy("org.nuxeo.ecm.automation.scripting")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-metadata-input.xml")
+    public void testMetadataChainInput() throws Exception {
+
+        FileImporterContext context = buildContextForTestFile(folder);
+        Blob blob = context.getBlob();
+        DocumentModel doc = fileManagerAutomation.createOrUpdate(context);
+        assertNotNull(doc);
+        assertEquals("Section", doc.getType());
+        assertEquals(TEST_FILE + "|" + blob.getLength(), doc.getPropertyValue("dc:description"));
+        Blob content = (Blob) doc.getPropertyValue("file:content");
+        assertEquals(blob.getLength(), content.getLength());
+
+        // Not a pdf, whatever the mime type
+        Blob text = Blobs.createBlob("some text", "application/pdf", null, "fake.pdf");
+        context = FileImporterContext.builder(coreSession, text, folder.getPathAsString()).build();
+        assertNull(fileManagerAutomation.createOrUpdate(context));
+
+        // Same for the batch chain, with the metadata of each file
+        List<FileImporterContext> contexts = List.of(buildContextForTestFile(folder),
+                FileImporterContext.builder(coreSession, text, folder.getPathAsString()).build());
+        List<DocumentModel> docs = fileManagerAutomation.createOrUpdateBatch(contexts);
+        assertEquals("Section", docs.get(0).getType());
+        assertEquals(TEST_FILE + "|" + blob.getLength(), docs.get(0).getPropertyValue("dc:description"));
+        assertNull(docs.get(1));
+
+    }
+
+    @Test
+    @Deploy("org.nuxeo.ecm.automation.scripting")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-update-mode.xml")
+    public void testUpdateMode() throws Exception {
+
+        DocumentModel doc = fileManagerAutomation.createOrUpdate(buildContextForTestFile(folder));
+        assertNotNull(doc);
+        nextTransaction();
+
+        // Same file again => same document, nothing changed
+        DocumentModel same = fileManagerAutomation.createOrUpdate(buildContextForTestFile(folder));
+        assertEquals(doc.getId(), same.getId());
+        assertEquals(1, coreSession.getChildren(folder.getRef()).size());
+        nextTransaction();
+
+        // Same name, new content => the document is updated and versioned
+        Blob newContent = Blobs.createBlob("new content", "application/pdf", null, TEST_FILE);
+        FileImporterContext context = FileImporterContext.builder(coreSession, newContent, folder.getPathAsString())
+                                                         .overwrite(true)
+                                                         .build();
+        DocumentModel updated = fileManagerAutomation.createOrUpdate(context);
+        assertEquals(doc.getId(), updated.getId());
+        assertEquals(newContent.getLength(), ((Blob) updated.getPropertyValue("file:content")).getLength());
+        assertEquals(1, coreSession.getChildren(folder.getRef()).size());
+        assertFalse(coreSession.getVersionsRefs(updated.getRef()).isEmpty());
+        nextTransaction();
+
+        // Same content, another name => another document
+        ChildDocumentIndex index = fileManagerAutomation.getChildDocumentIndex();
+        long queries = index.getQueries();
+        Blob copy = Blobs.createBlob("new content", "application/pdf", null, "copy.pdf");
+        DocumentModel other = fileManagerAutomation.createOrUpdate(
+                FileImporterContext.builder(coreSession, copy, folder.getPathAsString()).build());
+        assertNotEquals(doc.getId(), other.getId());
+        assertEquals(2, coreSession.getChildren(folder.getRef()).size());
+        // The children of the parent are loaded once for both lookups
+        assertEquals(queries + 1, index.getQueries());
+
+        // Deleted in the transaction => not found anymore, a new document is created
+        coreSession.removeDocument(other.getRef());
+        DocumentModel again = fileManagerAutomation.createOrUpdate(
+                FileImporterContext.builder(coreSession, copy, folder.getPathAsString()).overwrite(true).build());
+        assertNotEquals(other.getId(), again.getId());
+        assertEquals(2, coreSession.getChildren(folder.getRef()).size());
+        nextTransaction();
+
+        // Batch import, same name => the document is updated too
+        Blob batchContent = Blobs.createBlob("batch content", "application/pdf", null, TEST_FILE);
+        List<DocumentModel> docs = fileManagerAutomation.createOrUpdateBatch(
+                List.of(FileImporterContext.builder(coreSession, batchContent, folder.getPathAsString())
+                                           .overwrite(true)
+                                           .build()));
+        assertEquals(doc.getId(), docs.get(0).getId());
+        assertEquals(batchContent.getLength(), ((Blob) docs.get(0).getPropertyValue("file:content")).getLength());
+        assertEquals(2, coreSession.getChildren(folder.getRef()).size());
+
+    }
+
+    @Test
+    @Deploy("org.nuxeo.ecm.automation.scripting")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-enrichment.xml")
+    public void testEnrichment() throws Exception {
+
+        ImportMetrics metrics = fileManagerAutomation.getMetrics();
+        long enriched = metrics.getCounter(ImportMetrics.Outcome.ENRICHED, "javascript.testEnrich").getCount();
+
+        List<DocumentModel> docs = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Blob blob = Blobs.createBlob("file " + i, "text/plain", null, "file-" + i + ".txt");
+            DocumentModel doc = fileManagerAutomation.createOrUpdate(
+                    FileImporterContext.builder(coreSession, blob, folder.getPathAsString()).build());
+            assertEquals("File", doc.getType());
+            // Created with its type, title and blob only
+            assertEquals("file-" + i + ".txt", doc.getTitle());
+            assertNotNull(doc.getPropertyValue("file:content"));
+            assertNull(doc.getPropertyValue("dc:description"));
+            docs.add(doc);
+        }
+
+        nextTransaction();
+        assertTrue(Framework.getService(WorkManager.class).awaitCompletion(20, TimeUnit.SECONDS));
+        nextTransaction();
+
+        for (DocumentModel doc : docs) {
+            doc = coreSession.getDocument(doc.getRef());
+            assertEquals("ENRICHED", doc.getPropertyValue("dc:description"));
+            assertEquals("ENRICHMENT CHAIN", doc.getPropertyValue("dc:source"));
+        }
+        assertEquals(enriched + 3,
+                metrics.getCounter(ImportMetrics.Outcome.ENRICHED, "javascript.testEnrich").getCount());
+    }
+
+    @Test
+    @Deploy("org.nuxeo.ecm.automation.scripting")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-deferred-enrichment.xml")
+    public void testDeferredEnrichment() throws Exception {
+
+        ImportMetrics metrics = fileManagerAutomation.getMetrics();
+        String chainId = "javascript.testDeferredFile";
+        long chainCalls = metrics.getTimer(ImportMetrics.Phase.CHAIN, chainId).getCount();
+        long declined = metrics.getCounter(ImportMetrics.Outcome.DECLINED, chainId).getCount();
+
+        Blob blob = Blobs.createBlob("some text", "text/plain", null, "notes.txt");
+        DocumentModel doc = fileManagerAutomation.createOrUpdate(
+                FileImporterContext.builder(coreSession, blob, folder.getPathAsString()).build());
+        Blob skipped = Blobs.createBlob("other text", "text/plain", null, "skip-me.txt");
+        DocumentModel skippedDoc = fileManagerAutomation.createOrUpdate(
+                FileImporterContext.builder(coreSession, skipped, folder.getPathAsString()).build());
+        // Created with the configured type, the chain is not called in the upload
+        assertEquals("File", doc.getType());
+        assertEquals("notes.txt", doc.getTitle());
+        assertEquals(chainCalls, metrics.getTimer(ImportMetrics.Phase.CHAIN, chainId).getCount());
+
+        nextTransaction();
+        assertTrue(Framework.getService(WorkManager.class).awaitCompletion(20, TimeUnit.SECONDS));
+        nextTransaction();
+
+        doc = coreSession.getDocument(doc.getRef());
+        assertEquals("Deferred notes.txt", doc.getTitle());
+        assertEquals("ENRICHED", doc.getPropertyValue("dc:description"));
+        // Enriched as the user who imported the file
+        assertEquals(coreSession.getPrincipal().getName(), doc.getPropertyValue("dc:lastContributor"));
+        assertEquals(chainCalls + 2, metrics.getTimer(ImportMetrics.Phase.CHAIN, chainId).getCount());
+
+        // Declined by the chain in the work: kept as created, not enriched
+        skippedDoc = coreSession.getDocument(skippedDoc.getRef());
+        assertEquals("File", skippedDoc.getType());
+        assertEquals("skip-me.txt", skippedDoc.getTitle());
+        assertNull(skippedDoc.getPropertyValue("dc:description"));
+        assertEquals(declined + 1, metrics.getCounter(ImportMetrics.Outcome.DECLINED, chainId).getCount());
+    }
+
+    @Test
+    @Deploy("org.nuxeo.ecm.automation.scripting")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-listener-replay.xml")
+    public void testListenerReplay() throws Exception {
+
+        ImportMetrics metrics = fileManagerAutomation.getMetrics();
+        long replayed = metrics.getCounter(ImportMetrics.Outcome.REPLAYED, "testReplay").getCount();
+
+        List<DocumentModel> docs = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Blob blob = Blobs.createBlob("file " + i, "text/plain", null, "file-" + i + ".txt");
+            DocumentModel doc = fileManagerAutomation.createOrUpdate(
+                    FileImporterContext.builder(coreSession, blob, folder.getPathAsString()).build());
+            assertEquals("File", doc.getType());
+            assertNull(doc.getPropertyValue("dc:source"));
+            // Dublin Core listener disabled
+            assertNull(doc.getPropertyValue("dc:creator"));
+            assertNull(doc.getPropertyValue("dc:created"));
+            docs.add(doc);
+        }
+
+        nextTransaction();
+        assertTrue(Framework.getService(WorkManager.class).awaitCompletion(20, TimeUnit.SECONDS));
+        nextTransaction();
+
+        for (DocumentModel doc : docs) {
+            doc = coreSession.getDocument(doc.getRef());
+            assertEquals("REPLAYED", doc.getPropertyValue("dc:source"));
+            // Set by the Dublin Core listener, as the user who imported the file
+            assertEquals(coreSession.getPrincipal().getName(), doc.getPropertyValue("dc:creator"));
+            assertNotNull(doc.getPropertyValue("dc:created"));
+        }
+        assertEquals(replayed + 3, metrics.getCounter(ImportMetrics.Outcome.REPLAYED, "testReplay").getCount());
+    }
+
+    @Test
+    @Deploy("org.nuxeo.ecm.automation.scripting")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-batch.xml")
+    public void testCreateBatch() throws Exception {
+
+        Blob text = Blobs.createBlob("some text", "text/plain", null, "notes.txt");
+        List<FileImporterContext> contexts = new ArrayList<>();
+        contexts.add(buildContextForTestFile(sectionRoot));
+        contexts.add(FileImporterContext.builder(coreSession, text, sectionRoot.getPathAsString()).build());
+        contexts.add(buildContextForTestFile(sectionRoot));
+        contexts.add(buildContextForTestFile(folder));
+
+        List<DocumentModel> docs = fileManagerAutomation.createOrUpdateBatch(contexts);
+        assertEquals(4, docs.size());
+        assertEquals("Section", docs.get(0).getType());
+        assertEquals("BATCH 0", docs.get(0).getPropertyValue("dc:description"));
+        assertNull(docs.get(1));
+        assertEquals("Section", docs.get(2).getType());
+        assertEquals("BATCH 2", docs.get(2).getPropertyValue("dc:description"));
+        assertNull(docs.get(3));
+
+    }
+
+    @Test
+    @Deploy("org.nuxeo.ecm.automation.scripting")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-batch.xml")
+    public void testImportBatchOperation() throws Exception {
+
+        ImportMetrics metrics = fileManagerAutomation.getMetrics();
+        long batchCalls = metrics.getTimer(ImportMetrics.Phase.CHAIN, "javascript.testReturnSectionsBatch").getCount();
+        long singleCalls = metrics.getTimer(ImportMetrics.Phase.CHAIN, "javascript.testReturnSection").getCount();
+
+        BlobList blobs = new BlobList();
+        blobs.add(Blobs.createBlob(FileUtils.getResourceFileFromContext(TEST_FILE), "application/pdf"));
+        blobs.add(Blobs.createBlob("some text", "text/plain", null, "notes.txt"));
+
+        OperationContext ctx = new OperationContext(coreSession);
+        ctx.setInput(blobs);
+        Map<String, Object> params = new HashMap<>();
+        params.put("path", sectionRoot.getPathAsString());
+        DocumentModelList docs = (DocumentModelList) automationService.run(ctx, ImportBatchWithAutomation.ID, params);
+
+        // The text file is not handled by the chain => created by the next FileManager plugin
+        assertEquals(2, docs.size());
+        assertEquals("Section", docs.get(0).getType());
+        assertNotEquals("Section", docs.get(1).getType());
+
+        // The declined file does not go through the callback a second time
+        assertEquals(batchCalls + 1,
+                metrics.getTimer(ImportMetrics.Phase.CHAIN, "javascript.testReturnSectionsBatch").getCount());
+        assertEquals(singleCalls,
+                metrics.getTimer(ImportMetrics.Phase.CHAIN, "javascript.testReturnSection").getCount());
+
+    }
+
+    @Test
+    @Deploy("org.nuxeo.ecm.automation.scripting")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-folder-hierarchy.xml")
+    public void testCreateFolderishHierarchy() {
+
+        ImportMetrics metrics = fileManagerAutomation.getMetrics();
+        String chainId = "javascript.testFolderHierarchy";
+        long chainCalls = metrics.getTimer(ImportMetrics.Phase.CHAIN, chainId).getCount();
+
+        // Children before their parent on purpose
+        List<String> paths = List.of("a/b/c", "a", "a/b", "skip", "skip/d", "e/");
+        List<DocumentModel> folders = fileManagerAutomation.createFolderishHierarchy(coreSession,
+                folder.getPathAsString(), paths, false);
+
+        assertEquals(chainCalls + 1, metrics.getTimer(ImportMetrics.Phase.CHAIN, chainId).getCount());
+        assertEquals(paths.size(), folders.size());
+        assertEquals(folder.getPathAsString() + "/a/b/c", folders.get(0).getPathAsString());
+        assertEquals("Folder", folders.get(0).getType());
+        assertEquals("Workspace", folders.get(1).getType());
+        assertEquals("a", folders.get(1).getTitle());
+        assertNull(folders.get(3));
+        assertNull(folders.get(4));
+        assertEquals("Workspace", folders.get(5).getType());
+
+        // Imported again: the existing Folderish are reused
+        nextTransaction();
+        List<DocumentModel> again = fileManagerAutomation.createFolderishHierarchy(coreSession,
+                folder.getPathAsString(), paths, true);
+        assertEquals(folders.get(0).getId(), again.get(0).getId());
+        assertEquals(folders.get(1).getId(), again.get(1).getId());
+    }
+
+    @Test
+    public void testImportTreeOperation() throws Exception {
+
+        Path root = Files.createTempDirectory("tree-import");
+        try {
+            Files.writeString(root.resolve("a.txt"), "a");
+            Files.createDirectories(root.resolve("sub/deeper"));
+            Files.createDirectories(root.resolve("sub2"));
+            Files.writeString(root.resolve("sub/b.txt"), "b");
+            Files.writeString(root.resolve("sub/deeper/c.txt"), "c");
+            Files.writeString(root.resolve("sub2/d.txt"), "d");
+            // The importer uses its own transactions
+            nextTransaction();
+
+            OperationContext ctx = new OperationContext(coreSession);
+            Map<String, Object> params = new HashMap<>();
+            params.put("path", folder.getPathAsString());
+            params.put("directory", root.toString());
+            params.put("workers", 2);
+            params.put("batchSize", 2);
+            Blob report = (Blob) automationService.run(ctx, ImportTreeWithAutomation.ID, params);
+            nextTransaction();
+
+            String json = report.getString();
+            assertTrue(json, json.contains("\"folders\":3"));
+            assertTrue(json, json.contains("\"files\":4"));
+            assertTrue(json, json.contains("\"failures\":0"));
+            assertTrue(coreSession.exists(new PathRef(folder.getPathAsString() + "/sub/deeper/c.txt")));
+            assertTrue(coreSession.exists(new PathRef(folder.getPathAsString() + "/sub2/d.txt")));
+        } finally {
+            org.apache.commons.io.FileUtils.deleteDirectory(root.toFile());
+        }
+    }
+
+    @Test
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-pipelined-blob-write.xml")
+    public void testPipelinedBlobWrite() throws Exception {
+
+        BlobWritePipeline pipeline = fileManagerAutomation.getBlobWritePipeline();
+        long written = pipeline.getWritten();
+        assertEquals(2, pipeline.executor.getMaximumPoolSize());
+        assertEquals(10, pipeline.executor.getQueue().remainingCapacity());
+
+        FileImporterContext context = buildContextForTestFile(sectionRoot);
+        Blob blob = context.getBlob();
+        String digest;
+        try (InputStream in = blob.getStream()) {
+            digest = DigestUtils.md5Hex(in);
+        }
+
+        DocumentModel doc = fileManagerAutomation.createOrUpdate(context);
+        assertNotNull(doc);
+        assertEquals("Section", doc.getType());
+        assertEquals(written + 1, pipeline.getWritten());
+
+        nextTransaction();
+        Blob content = (Blob) coreSession.getDocument(doc.getRef()).getPropertyValue("file:content");
+        assertEquals(blob.getFilename(), content.getFilename());
+        assertEquals(blob.getMimeType(), content.getMimeType());
+        assertEquals(blob.getLength(), content.getLength());
+        assertEquals(digest, content.getDigest());
+
+        // Declined => nothing to wait for
+        assertNull(fileManagerAutomation.createOrUpdate(buildContextForTestFile(folder)));
+    }
+
+    @Test
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-java-callbacks.xml")
+    public void testJavaCallbacks() throws Exception {
+
+        DocumentModel doc = fileManagerAutomation.createOrUpdate(buildContextForTestFile(sectionRoot));
+        assertNotNull(doc);
+        assertEquals("Section", doc.getType());
+        assertEquals("FROM JAVA", doc.getPropertyValue("dc:description"));
+
+        assertNull(fileManagerAutomation.createOrUpdate(buildContextForTestFile(folder)));
+
+        DocumentModel domain = coreSession.createDocumentModel("/", "domain", "Domain");
+        domain = coreSession.createDocument(domain);
+        doc = fileManagerAutomation.createFolderish(coreSession, "The Workspace", "/domain", false, null);
+        assertNotNull(doc);
+        assertEquals("Workspace", doc.getType());
+
+        assertNull(fileManagerAutomation.createFolderish(coreSession, "The Folder", "/", false, null));
+
+    }
+
+    @Test
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-execution.xml")
+    public void testExecutionGuard() throws Exception {
+
+        ImportMetrics metrics = fileManagerAutomation.getMetrics();
+        String callbackId = FaultyFileImportDecider.class.getName();
+        long timedOut = metrics.getCounter(ImportMetrics.Outcome.TIMED_OUT, callbackId).getCount();
+        long rejected = metrics.getCounter(ImportMetrics.Outcome.REJECTED, callbackId).getCount();
+
+        assertNotNull(fileManagerAutomation.createOrUpdate(buildContext("ok.txt")));
+        nextTransaction();
+
+        // Timeout expired => falls back as if declined, the caller's transaction is untouched
+        long start = System.currentTimeMillis();
+        assertNull(fileManagerAutomation.createOrUpdate(buildContext("slow.txt")));
+        assertTrue(System.currentTimeMillis() - start < 1_000);
+        assertFalse(Thread.currentThread().isInterrupted());
+        assertFalse(TransactionHelper.isTransactionMarkedRollback());
+        assertEquals(timedOut + 1, metrics.getCounter(ImportMetrics.Outcome.TIMED_OUT, callbackId).getCount());
+        nextTransaction();
+
+        // Second failure in a row => the circuit is open, the callback is not called anymore
+        try {
+            fileManagerAutomation.createOrUpdate(buildContext("fail.txt"));
+            fail();
+        } catch (NuxeoException e) {
+            assertEquals("Failing on purpose", e.getMessage());
+        }
+        assertNull(fileManagerAutomation.createOrUpdate(buildContext("ok.txt")));
+        assertEquals(rejected + 1, metrics.getCounter(ImportMetrics.Outcome.REJECTED, callbackId).getCount());
+    }
+
+    protected FileImporterContext buildContext(String fileName) {
+        Blob blob = Blobs.createBlob("content", "text/plain", null, fileName);
+        return FileImporterContext.builder(coreSession, blob, folder.getPathAsString()).build();
+    }
+
+    protected FileImporterContext buildContext(DocumentModel parent, String pdfName) {
+        Blob blob = Blobs.createBlob("content", "application/pdf", null, pdfName);
+        return FileImporterContext.builder(coreSession, blob, parent.getPathAsString()).build();
+    }
+
+    @Test
+    @Deploy("org.nuxeo.ecm.automation.scripting")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-warm-up.xml")
+    public void testWarmUp() throws Exception {
+
+        // The chain ran at startup, in a transaction that was rolled back
+        assertFalse(coreSession.exists(new PathRef("/filemanager-automation-warm-up")));
+
+        DocumentModel doc = fileManagerAutomation.createOrUpdate(buildContextForTestFile(sectionRoot));
+        assertNotNull(doc);
+        assertEquals("Section", doc.getType());
+
+    }
+
+    @Test
+    public void testHotReloadConfiguration() throws Exception {
+
+        assertNull(fileManagerAutomation.createOrUpdate(buildContextForTestFile(sectionRoot)));
+
+        hotDeployer.deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-java-callbacks.xml");
+        FileImporterAutomationService service = Framework.getService(FileImporterAutomationService.class);
+        DocumentModel doc = service.createOrUpdate(buildContextForTestFile(sectionRoot));
+        assertNotNull(doc);
+        assertEquals("Section", doc.getType());
+
+        // Back to the default contrib
+        hotDeployer.undeploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-java-callbacks.xml");
+        service = Framework.getService(FileImporterAutomationService.class);
+        assertNull(service.createOrUpdate(buildContextForTestFile(sectionRoot)));
+
+    }
+
+    @Test
+    @Deploy("org.nuxeo.ecm.automation.scripting")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-return-a-section.xml")
+    public void testInvalidContributionIsRejected() throws Exception {
+
+        FileImporterAutomationDescriptor invalid = new FileImporterAutomationDescriptor();
+        invalid.id = "invalid";
+        invalid.chainInput = "document";
+        try {
+            ((FileImporterAutomationServiceImpl) fileManagerAutomation).registerContribution(invalid,
+                    FileImporterAutomationServiceImpl.EXT_POINT, null);
+            fail();
+        } catch (NuxeoException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("chainInput"));
+        }
+
+        // The previous contributions still apply
+        DocumentModel doc = fileManagerAutomation.createOrUpdate(buildContextForTestFile(sectionRoot));
+        assertNotNull(doc);
+        assertEquals("Section", doc.getType());
+
+    }
+
     /*
      * WARNING: This tests the service only, not Nuxeo creating a Folderish via Nuxeo Drive.
      */
@@ -137,6 +875,33 @@ public class TestFileManagerAutomation {
 
     }
 
+    @Test
+    @Deploy("org.nuxeo.ecm.automation.scripting")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-create-workspace.xml")
+    public void testCreateFolderishOverwrite() {
+
+        DocumentModel domain = coreSession.createDocument(coreSession.createDocumentModel("/", "domain", "Domain"));
+        ImportMetrics metrics = fileManagerAutomation.getMetrics();
+        String chainId = "javascript.testReturnWorkspaceInDomain";
+        long chainCalls = metrics.getTimer(ImportMetrics.Phase.CHAIN, chainId).getCount();
+
+        DocumentModel doc = fileManagerAutomation.createFolderish(coreSession, "The Workspace", "/domain", true, null);
+        assertNotNull(doc);
+        nextTransaction();
+
+        // Existing Folderish reused, the chain is not called
+        DocumentModel same = fileManagerAutomation.createFolderish(coreSession, "The Workspace", "/domain", true, null);
+        assertEquals(doc.getId(), same.getId());
+        assertEquals(chainCalls + 1, metrics.getTimer(ImportMetrics.Phase.CHAIN, chainId).getCount());
+
+        // No overwrite => a new one
+        DocumentModel other = fileManagerAutomation.createFolderish(coreSession, "The Workspace", "/domain", false,
+                null);
+        assertNotEquals(doc.getId(), other.getId());
+        assertEquals(2, coreSession.getChildren(domain.getRef()).size());
+
+    }
+
     /*
      * WARNING: This tests the service only, not Nuxeo creating a Folderish via Nuxeo Drive.
      */
@@ -0,0 +1,303 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.automation.test.AutomationFeature;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.PathRef;
+import org.nuxeo.ecm.core.test.DefaultRepositoryInit;
+import org.nuxeo.ecm.core.test.annotations.Granularity;
+import org.nuxeo.ecm.core.test.annotations.RepositoryConfig;
+import org.nuxeo.ecm.platform.filemanager.api.FileImporterContext;
+import org.nuxeo.ecm.platform.filemanager.api.FileManager;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Concurrent imports through the FileManager: N threads, each with its own session and one transaction per import,
+ * import a mix of generated blobs in a folder tree, as users dropping files at the same time. Throughput and latency
+ * percentiles are logged for each configuration, so a regression of the concurrency behavior shows up in the build.
+ * <br>
+ * Defaults are small to keep the build fast. Use {@code -Dload.threads}, {@code -Dload.filesPerThread} and
+ * {@code -Dload.treeWidth} for a real load test.
+ */
+@RunWith(FeaturesRunner.class)
+@Features(AutomationFeature.class)
+@RepositoryConfig(init = DefaultRepositoryInit.class, cleanup = Granularity.METHOD)
+@Deploy("org.nuxeo.ecm.platform.types")
+@Deploy("org.nuxeo.ecm.platform.filemanager")
+@Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core")
+public class TestImportLoad {
+
+    private static final Logger log = LogManager.getLogger(TestImportLoad.class);
+
+    public static final int THREADS = Integer.getInteger("load.threads", 4);
+
+    public static final int FILES_PER_THREAD = Integer.getInteger("load.filesPerThread", 20);
+
+    public static final int TREE_WIDTH = Integer.getInteger("load.treeWidth", 3);
+
+    @Inject
+    protected CoreSession coreSession;
+
+    @Inject
+    protected FileManager fileManager;
+
+    /**
+     * One import of the load test, run by a thread in its own transaction.
+     */
+    @FunctionalInterface
+    protected interface LoadTask {
+        void run(CoreSession session, Random random, int thread, int index) throws Exception;
+    }
+
+    protected static class LoadReport {
+
+        protected final String name;
+
+        protected final long[] latencies;
+
+        protected final long elapsedNanos;
+
+        protected final int failures;
+
+        protected LoadReport(String name, long[] latencies, long elapsedNanos, int failures) {
+            this.name = name;
+            this.latencies = latencies;
+            this.elapsedNanos = elapsedNanos;
+            this.failures = failures;
+            Arrays.sort(this.latencies);
+        }
+
+        protected double percentileMillis(double percentile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+            return latencies[Math.max(index, 0)] / 1_000_000d;
+        }
+
+        protected double throughput() {
+            return latencies.length / (elapsedNanos / 1_000_000_000d);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d imports, %d threads, %.1f imports/s, p50=%.1fms, p95=%.1fms, p99=%.1fms,"
+                    + " %d failures", name, latencies.length, THREADS, throughput(), percentileMillis(50),
+                    percentileMillis(95), percentileMillis(99), failures);
+        }
+
+    }
+
+    protected void nextTransaction() {
+        coreSession.save();
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+    }
+
+    /**
+     * Creates a tree of {@link #TREE_WIDTH} children and grand children under the root, returns the paths of all the
+     * folders.
+     */
+    protected List<String> createFolderTree(String rootName, String rootType, String type) {
+        List<String> paths = new ArrayList<>();
+        DocumentModel root = coreSession.createDocument(coreSession.createDocumentModel("/", rootName, rootType));
+        paths.add(root.getPathAsString());
+        for (int i = 0; i < TREE_WIDTH; i++) {
+            DocumentModel child = coreSession.createDocument(
+                    coreSession.createDocumentModel(root.getPathAsString(), "folder-" + i, type));
+            paths.add(child.getPathAsString());
+            for (int j = 0; j < TREE_WIDTH; j++) {
+                DocumentModel grandChild = coreSession.createDocument(
+                        coreSession.createDocumentModel(child.getPathAsString(), "folder-" + j, type));
+                paths.add(grandChild.getPathAsString());
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Returns a blob from a mix of pdf, text and image files of various sizes. Names must be unique across threads, so
+     * the threads do not update the same documents.
+     */
+    protected Blob randomBlob(Random random, byte[] pdf, String name) {
+        switch (random.nextInt(3)) {
+        case 0:
+            return Blobs.createBlob(pdf, "application/pdf", null, name + ".pdf");
+        case 1:
+            byte[] text = new byte[1 + random.nextInt(64 * 1024)];
+            Arrays.fill(text, (byte) 'a');
+            return Blobs.createBlob(text, "text/plain", "UTF-8", name + ".txt");
+        default:
+            byte[] image = new byte[1 + random.nextInt(256 * 1024)];
+            random.nextBytes(image);
+            return Blobs.createBlob(image, "image/jpeg", null, name + ".jpg");
+        }
+    }
+
+    protected LoadReport runLoad(String name, LoadTask task) throws Exception {
+
+        // Make the tree visible to the threads
+        nextTransaction();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch go = new CountDownLatch(1);
+        AtomicInteger failures = new AtomicInteger();
+        long[][] latencies = new long[THREADS][];
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+                long[] threadLatencies = new long[FILES_PER_THREAD];
+                latencies[thread] = threadLatencies;
+                Random random = new Random(thread);
+                CoreSession session = CoreInstance.getCoreSession(coreSession.getRepositoryName(),
+                        coreSession.getPrincipal());
+                go.await();
+                for (int i = 0; i < FILES_PER_THREAD; i++) {
+                    int index = i;
+                    long start = System.nanoTime();
+                    try {
+                        TransactionHelper.runInTransaction(() -> {
+                            try {
+                                task.run(session, random, thread, index);
+                            } catch (Exception e) {
+                                throw new RuntimeException(e);
+                            }
+                        });
+                    } catch (RuntimeException e) {
+                        log.warn("Import failed", e);
+                        failures.incrementAndGet();
+                    }
+                    threadLatencies[i] = System.nanoTime() - start;
+                }
+                return null;
+            }));
+        }
+
+        long start = System.nanoTime();
+        go.countDown();
+        for (Future<?> future : futures) {
+            future.get(10, TimeUnit.MINUTES);
+        }
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).toArray();
+        LoadReport report = new LoadReport(name, all, elapsed, failures.get());
+        log.info(report);
+        return report;
+    }
+
+    protected static byte[] testPdf() throws Exception {
+        File f = FileUtils.getResourceFileFromContext(TestFileManagerAutomation.TEST_FILE);
+        return Files.readAllBytes(f.toPath());
+    }
+
+    @Test
+    public void testLoadDefaultContrib() throws Exception {
+
+        List<String> parents = createFolderTree("load", "Folder", "Folder");
+        byte[] pdf = testPdf();
+
+        LoadReport report = runLoad("default contrib", (session, random, thread, index) -> {
+            String parent = parents.get(random.nextInt(parents.size()));
+            Blob blob = randomBlob(random, pdf, "file-" + thread + "-" + index);
+            FileImporterContext context = FileImporterContext.builder(session, blob, parent).overwrite(true).build();
+            fileManager.createOrUpdateDocument(context);
+        });
+
+        assertEquals(0, report.failures);
+    }
+
+    @Test
+    @Deploy("org.nuxeo.ecm.automation.scripting")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-create-workspace.xml")
+    public void testLoadWorkspaceInDomain() throws Exception {
+
+        coreSession.createDocument(coreSession.createDocumentModel("/", "domain", "Domain"));
+        byte[] pdf = testPdf();
+
+        LoadReport report = runLoad("workspace in domain", (session, random, thread, index) -> {
+            DocumentModel workspace = fileManager.createFolder(session, "ws-" + thread + "-" + index, "/domain",
+                    true);
+            Blob blob = randomBlob(random, pdf, "file-" + thread + "-" + index);
+            FileImporterContext context = FileImporterContext.builder(session, blob, workspace.getPathAsString())
+                                                             .overwrite(true)
+                                                             .build();
+            fileManager.createOrUpdateDocument(context);
+        });
+
+        assertEquals(0, report.failures);
+        assertEquals(THREADS * FILES_PER_THREAD,
+                coreSession.query("SELECT * FROM Workspace WHERE ecm:parentId = '"
+                        + coreSession.getDocument(new PathRef("/domain")).getId() + "'")
+                           .size());
+    }
+
+    @Test
+    @Deploy("org.nuxeo.ecm.automation.scripting")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-return-a-section-with-properties.xml")
+    public void testLoadSectionWithProperties() throws Exception {
+
+        List<String> parents = createFolderTree("load", "SectionRoot", "SectionRoot");
+        byte[] pdf = testPdf();
+
+        LoadReport report = runLoad("section with properties", (session, random, thread, index) -> {
+            String parent = parents.get(random.nextInt(parents.size()));
+            Blob blob = randomBlob(random, pdf, "file-" + thread + "-" + index);
+            FileImporterContext context = FileImporterContext.builder(session, blob, parent).overwrite(true).build();
+            fileManager.createOrUpdateDocument(context);
+        });
+
+        assertEquals(0, report.failures);
+        assertEquals(THREADS * FILES_PER_THREAD,
+                coreSession.query("SELECT * FROM Section WHERE dc:description = 'THE DESC'").size());
+    }
+
+}
@@ -0,0 +1,349 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.inject.Inject;
+
+import org.apache.commons.io.input.NullInputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.automation.test.AutomationFeature;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.PathRef;
+import org.nuxeo.ecm.core.api.impl.blob.AbstractBlob;
+import org.nuxeo.ecm.core.test.DefaultRepositoryInit;
+import org.nuxeo.ecm.core.test.annotations.Granularity;
+import org.nuxeo.ecm.core.test.annotations.RepositoryConfig;
+import org.nuxeo.ecm.platform.filemanager.api.FileImporterContext;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Replays a log written by the {@link ImportRecorder} against the callback chains deployed by the test, in the
+ * in-memory repository and with stub blobs of the recorded size and mime type. Throughput, latency percentiles and the
+ * records for which the new chains decide another document type than the recorded one are logged, so a new chain can
+ * be checked on real traffic before it is deployed.
+ * <br>
+ * The sample log of the test resources is used by default. Use {@code -Dreplay.log} to replay a captured log, and
+ * change the {@code @Deploy} of {@link #testReplay()} to deploy the chains to check.
+ */
+@RunWith(FeaturesRunner.class)
+@Features(AutomationFeature.class)
+@RepositoryConfig(init = DefaultRepositoryInit.class, cleanup = Granularity.METHOD)
+@Deploy("org.nuxeo.ecm.platform.types")
+@Deploy("org.nuxeo.ecm.platform.filemanager")
+@Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core")
+public class TestImportReplay {
+
+    private static final Logger log = LogManager.getLogger(TestImportReplay.class);
+
+    public static final String SAMPLE_LOG = "sample-import-log.jsonl";
+
+    public static final String REPLAY_LOG = System.getProperty("replay.log");
+
+    // Transaction committed every N imports
+    public static final int BATCH_SIZE = Integer.getInteger("replay.batchSize", 100);
+
+    @Inject
+    protected CoreSession coreSession;
+
+    @Inject
+    protected FileImporterAutomationService fileManagerAutomation;
+
+    /**
+     * A blob with no content: {@code length} zeros, never held in memory.
+     */
+    protected static class StubBlob extends AbstractBlob {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final long length;
+
+        protected StubBlob(String fileName, String mimeType, long length) {
+            this.length = length;
+            setFilename(fileName);
+            setMimeType(mimeType);
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public InputStream getStream() throws IOException {
+            return new NullInputStream(length);
+        }
+
+    }
+
+    /**
+     * A record for which the new chains decide another document type.
+     */
+    protected static class DecisionDiff {
+
+        protected final ImportRecord record;
+
+        protected final String docType;
+
+        protected DecisionDiff(ImportRecord record, String docType) {
+            this.record = record;
+            this.docType = docType;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s in %s (%s): %s => %s", record.getKind(), record.getName(),
+                    record.getParentPath(), record.getParentType(), record.getDocType(), docType);
+        }
+
+    }
+
+    protected static class ReplayReport {
+
+        protected final long[] latencies;
+
+        protected final long[] recordedLatencies;
+
+        protected final long elapsedNanos;
+
+        protected final Map<String, Integer> outcomes;
+
+        protected final List<DecisionDiff> diffs;
+
+        protected ReplayReport(long[] latencies, long[] recordedLatencies, long elapsedNanos,
+                Map<String, Integer> outcomes, List<DecisionDiff> diffs) {
+            this.latencies = latencies;
+            this.recordedLatencies = recordedLatencies;
+            this.elapsedNanos = elapsedNanos;
+            this.outcomes = outcomes;
+            this.diffs = diffs;
+            Arrays.sort(this.latencies);
+            Arrays.sort(this.recordedLatencies);
+        }
+
+        protected static double percentileMillis(long[] nanos, double percentile) {
+            if (nanos.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * nanos.length) - 1;
+            return nanos[Math.max(index, 0)] / 1_000_000d;
+        }
+
+        protected double throughput() {
+            return latencies.length / (elapsedNanos / 1_000_000_000d);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder();
+            report.append(String.format(
+                    "%d imports replayed, %.1f imports/s, p50=%.1fms, p95=%.1fms, p99=%.1fms"
+                            + " (recorded: p50=%.1fms, p95=%.1fms, p99=%.1fms), outcomes: %s, %d decision diffs",
+                    latencies.length, throughput(), percentileMillis(latencies, 50), percentileMillis(latencies, 95),
+                    percentileMillis(latencies, 99), percentileMillis(recordedLatencies, 50),
+                    percentileMillis(recordedLatencies, 95), percentileMillis(recordedLatencies, 99), outcomes,
+                    diffs.size()));
+            for (DecisionDiff diff : diffs) {
+                report.append("\n  ").append(diff);
+            }
+            return report.toString();
+        }
+
+    }
+
+    protected void nextTransaction() {
+        coreSession.save();
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+    }
+
+    protected static List<ImportRecord> readLog(Path file) throws IOException {
+        List<ImportRecord> records = new ArrayList<>();
+        for (String line : Files.readAllLines(file)) {
+            if (!line.isBlank()) {
+                records.add(ImportRecord.parse(line));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Creates the parent of the record if needed: the ancestors as Folders, the parent with the recorded type.
+     */
+    protected void createParent(ImportRecord record) {
+        String path = record.getParentPath();
+        if (coreSession.exists(new PathRef(path))) {
+            return;
+        }
+        String parentType = record.getParentType() == null ? "Folder" : record.getParentType();
+        String current = "";
+        String[] names = path.substring(1).split("/");
+        for (int i = 0; i < names.length; i++) {
+            String parentPath = current.isEmpty() ? "/" : current;
+            current += "/" + names[i];
+            if (!coreSession.exists(new PathRef(current))) {
+                coreSession.createDocument(coreSession.createDocumentModel(parentPath, names[i],
+                        i == names.length - 1 ? parentType : "Folder"));
+            }
+        }
+    }
+
+    protected ReplayReport replay(List<ImportRecord> records) {
+
+        // Parents first, so the replay only measures the imports
+        for (ImportRecord record : records) {
+            createParent(record);
+        }
+        nextTransaction();
+
+        long[] latencies = new long[records.size()];
+        long[] recordedLatencies = new long[records.size()];
+        Map<String, Integer> outcomes = new LinkedHashMap<>();
+        List<DecisionDiff> diffs = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < records.size(); i++) {
+            ImportRecord record = records.get(i);
+            String outcome = ImportRecord.OUTCOME_FAILED;
+            DocumentModel doc = null;
+            long importStart = System.nanoTime();
+            try {
+                if (ImportTrace.FOLDERISH.equals(record.getKind())) {
+                    doc = fileManagerAutomation.createFolderish(coreSession, record.getName(),
+                            record.getParentPath(), true, null);
+                } else {
+                    Blob blob = new StubBlob(record.getName(), record.getMimeType(), record.getLength());
+                    doc = fileManagerAutomation.createOrUpdate(
+                            FileImporterContext.builder(coreSession, blob, record.getParentPath())
+                                               .overwrite(true)
+                                               .build());
+                }
+                outcome = doc == null ? ImportRecord.OUTCOME_DECLINED : ImportRecord.OUTCOME_IMPORTED;
+            } catch (RuntimeException e) {
+                log.warn("Replay of {} failed", record, e);
+            }
+            latencies[i] = System.nanoTime() - importStart;
+            recordedLatencies[i] = record.getDurationMicros() * 1000;
+            outcomes.merge(outcome, 1, Integer::sum);
+            String docType = doc == null ? null : doc.getType();
+            if (!ImportRecord.OUTCOME_FAILED.equals(outcome) && !Objects.equals(docType, record.getDocType())) {
+                diffs.add(new DecisionDiff(record, docType));
+            }
+            if ((i + 1) % BATCH_SIZE == 0) {
+                nextTransaction();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        nextTransaction();
+
+        ReplayReport report = new ReplayReport(latencies, recordedLatencies, elapsed, outcomes, diffs);
+        log.info(report);
+        return report;
+    }
+
+    @Test
+    @Deploy("org.nuxeo.ecm.automation.scripting")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-return-a-section.xml")
+    public void testReplay() throws Exception {
+
+        Path file = REPLAY_LOG == null ? FileUtils.getResourceFileFromContext(SAMPLE_LOG).toPath()
+                : Path.of(REPLAY_LOG);
+        List<ImportRecord> records = readLog(file);
+
+        ReplayReport report = replay(records);
+
+        assertEquals(records.size(), report.latencies.length);
+        if (REPLAY_LOG == null) {
+            // The sample log was recorded with a chain creating a Picture for the images
+            assertEquals(1, report.diffs.size());
+            assertEquals("photo.jpg", report.diffs.get(0).record.getName());
+            assertEquals("Section", report.diffs.get(0).docType);
+            assertNull(report.outcomes.get(ImportRecord.OUTCOME_FAILED));
+        }
+    }
+
+    @Test
+    @Deploy("org.nuxeo.ecm.automation.scripting")
+    @Deploy("nuxeo.filemanager.automation.nuxeo-filemanager-automation-core:test-return-a-section.xml")
+    public void testRecordAndReplay() throws Exception {
+
+        File file = Files.createTempFile("filemanager-automation-imports", ".jsonl").toFile();
+        file.deleteOnExit();
+        RecorderDescriptor descriptor = new RecorderDescriptor();
+        descriptor.enabled = true;
+        descriptor.file = file.getAbsolutePath();
+        ImportRecorder recorder = fileManagerAutomation.getRecorder();
+        recorder.configure(descriptor);
+        try {
+            DocumentModel sectionRoot = coreSession.createDocument(
+                    coreSession.createDocumentModel("/", "sections", "SectionRoot"));
+            DocumentModel folder = coreSession.createDocument(coreSession.createDocumentModel("/", "folder", "Folder"));
+            Blob blob = Blobs.createBlob("some text", "text/plain", null, "notes.txt");
+            fileManagerAutomation.createOrUpdate(
+                    FileImporterContext.builder(coreSession, blob, sectionRoot.getPathAsString()).build());
+            fileManagerAutomation.createOrUpdate(
+                    FileImporterContext.builder(coreSession, blob, folder.getPathAsString()).build());
+        } finally {
+            // Writes the pending records
+            recorder.configure(new RecorderDescriptor());
+        }
+
+        List<ImportRecord> records = readLog(file.toPath());
+        assertEquals(2, records.size());
+        ImportRecord record = records.get(0);
+        assertEquals(ImportTrace.FILE, record.getKind());
+        assertEquals("notes.txt", record.getName());
+        assertEquals("text/plain", record.getMimeType());
+        assertEquals(9, record.getLength());
+        assertEquals("/sections", record.getParentPath());
+        assertEquals("SectionRoot", record.getParentType());
+        assertEquals("Section", record.getDocType());
+        assertEquals(ImportRecord.OUTCOME_IMPORTED, record.getOutcome());
+        assertNull(records.get(1).getDocType());
+        assertEquals(ImportRecord.OUTCOME_DECLINED, records.get(1).getOutcome());
+
+        // Same chain => same decisions
+        ReplayReport report = replay(records);
+        assertEquals(0, report.diffs.size());
+    }
+
+}
@@ -0,0 +1,41 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.filemanager.automation;
+
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+
+/**
+ * Creates a Workspace in a Domain, lets the default FolderImporter do its job elsewhere.
+ */
+public class WorkspaceFolderishFactory implements FolderishFactory {
+
+    @Override
+    public DocumentModel createFolderish(CoreSession session, DocumentModel parentDoc, String title) {
+
+        if (!"Domain".equals(parentDoc.getType())) {
+            return null;
+        }
+
+        DocumentModel workspace = session.createDocumentModel(parentDoc.getPathAsString(), title, "Workspace");
+        workspace.setPropertyValue("dc:title", title);
+        return session.createDocument(workspace);
+    }
+
+}